@@ -0,0 +1,15 @@
+package com.ryanheise.persistp.benchmarks;
+
+import com.ryanheise.persistp.BackRef;
+import com.ryanheise.persistp.Entity;
+import com.ryanheise.persistp.Key;
+import com.ryanheise.persistp.Prop;
+
+public class Author extends Entity {
+	@Key int id;
+	@Prop String name;
+	@BackRef Book book;
+
+	public Author() {
+	}
+}
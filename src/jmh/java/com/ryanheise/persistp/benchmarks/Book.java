@@ -0,0 +1,23 @@
+package com.ryanheise.persistp.benchmarks;
+
+import com.ryanheise.persistp.Entity;
+import com.ryanheise.persistp.FPattern;
+import com.ryanheise.persistp.Key;
+import com.ryanheise.persistp.Prop;
+import com.ryanheise.persistp.Temporal;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public class Book extends Entity {
+	@Key String id;
+	@Prop String title;
+	@Prop double price;
+	@Prop @Temporal("yyyy/MM/dd") Date published;
+	@Prop int sold;
+	@FPattern("authors/*.properties") Map<String, Author> authorsMap;
+	@Prop @FPattern("authors/*.properties") List<Author> authors;
+
+	public Book() {
+	}
+}
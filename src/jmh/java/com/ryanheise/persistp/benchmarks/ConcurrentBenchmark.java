@@ -0,0 +1,77 @@
+package com.ryanheise.persistp.benchmarks;
+
+import com.ryanheise.persistp.EntityMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Readers looking up random books while a writer saves random books, with
+ * the default cache policy.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrentBenchmark {
+	@Param({ "1000" })
+	int books;
+
+	private File dir;
+	private EntityMap<Book> map;
+	private String[] keys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Dataset.createDirectory();
+		Dataset.writeBooks(new File(dir, "books"), "properties", books, 3);
+		Dataset.writeAuthors(new File(dir, "books/authors"), 3);
+		map = EntityMap.instance(Book.class, new File(dir, "books/*.properties"));
+		keys = new String[books];
+		for (int i = 0; i < books; i++)
+			keys[i] = String.valueOf(i);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Dataset.delete(dir);
+	}
+
+	private String randomKey() {
+		return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+	}
+
+	@Benchmark
+	@Group("mix")
+	@GroupThreads(3)
+	public String read() {
+		return map.get(randomKey()).title;
+	}
+
+	@Benchmark
+	@Group("mix")
+	@GroupThreads(1)
+	public void write() throws IOException {
+		Book book = map.get(randomKey());
+		book.sold++;
+		book.save();
+	}
+}
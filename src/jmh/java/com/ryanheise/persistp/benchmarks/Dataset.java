@@ -0,0 +1,84 @@
+package com.ryanheise.persistp.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Writes synthetic entity files for the benchmarks. Files are written
+ * directly rather than through PersistP so that large datasets are quick
+ * to generate.
+ */
+final class Dataset {
+	private Dataset() {
+	}
+
+	/** Creates an empty directory under java.io.tmpdir, or under the persistp.benchmark.dir system property if set. */
+	static File createDirectory() throws IOException {
+		String parent = System.getProperty("persistp.benchmark.dir");
+		if (parent != null) {
+			File dir = new File(parent);
+			dir.mkdirs();
+			return Files.createTempDirectory(dir.toPath(), "persistp-").toFile();
+		}
+		return Files.createTempDirectory("persistp-").toFile();
+	}
+
+	/**
+	 * Writes count books named &lt;key&gt;.&lt;format&gt; to the directory, where
+	 * format is "properties" or "xml", each listing the keys of the given
+	 * number of authors. Keys are "0", "1", "2" and so on.
+	 */
+	static void writeBooks(File dir, String format, int count, int authors) throws IOException {
+		dir.mkdirs();
+		StringBuilder keys = new StringBuilder();
+		for (int i = 0; i < authors; i++) {
+			if (i > 0)
+				keys.append(',');
+			keys.append(i);
+		}
+		for (int i = 0; i < count; i++)
+			writeBook(new File(dir, i + "." + format), i, keys.toString());
+	}
+
+	static void writeBook(File file, int i, String authorKeys) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("title", "Title " + i);
+		props.setProperty("price", String.valueOf(i % 100 + 0.99));
+		props.setProperty("published", "2020/01/" + (i % 28 + 1 < 10 ? "0" : "") + (i % 28 + 1));
+		props.setProperty("sold", String.valueOf(i));
+		if (!authorKeys.isEmpty())
+			props.setProperty("authors", authorKeys);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			if (file.getName().endsWith(".xml"))
+				props.storeToXML(out, null);
+			else
+				props.store(out, null);
+		}
+	}
+
+	/** Writes count authors named &lt;key&gt;.properties to the directory. */
+	static void writeAuthors(File dir, int count) throws IOException {
+		dir.mkdirs();
+		for (int i = 0; i < count; i++) {
+			byte[] data = ("name=Author " + i + "\n").getBytes(StandardCharsets.ISO_8859_1);
+			Files.write(new File(dir, i + ".properties").toPath(), data);
+		}
+	}
+
+	static void delete(File dir) throws IOException {
+		if (!dir.exists())
+			return;
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+}
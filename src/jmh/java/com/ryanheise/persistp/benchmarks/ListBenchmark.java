@@ -0,0 +1,63 @@
+package com.ryanheise.persistp.benchmarks;
+
+import com.ryanheise.persistp.CachePolicy;
+import com.ryanheise.persistp.EntityMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads a book whose list property refers to the given number of authors,
+ * which resolves the keys of the list through EntityList.setKeys. The
+ * authors are either already cached or loaded with the book.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ListBenchmark {
+	@Param({ "10", "1000" })
+	int authors;
+
+	@Param({ "true", "false" })
+	boolean authorsCached;
+
+	private File dir;
+	private EntityMap<Book> books;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		CachePolicy.setDefault(Author.class, authorsCached ? CachePolicy.strong() : CachePolicy.none());
+		dir = Dataset.createDirectory();
+		Dataset.writeBooks(new File(dir, "books"), "properties", 1, authors);
+		Dataset.writeAuthors(new File(dir, "books/authors"), authors);
+		books = EntityMap.instance(Book.class, new File(dir, "books/*.properties"));
+		books.setCachePolicy(CachePolicy.none());
+		books.get("0");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Dataset.delete(dir);
+	}
+
+	@Benchmark
+	public Book loadWithList() {
+		return books.get("0");
+	}
+}
@@ -0,0 +1,71 @@
+package com.ryanheise.persistp.benchmarks;
+
+import com.ryanheise.persistp.CachePolicy;
+import com.ryanheise.persistp.EntityMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Loads and saves single entities in the .properties and .xml formats. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoadSaveBenchmark {
+	private static final int BOOKS = 1000;
+
+	@Param({ "properties", "xml" })
+	String format;
+
+	private File dir;
+	private EntityMap<Book> books;
+	private String[] keys = new String[BOOKS];
+	private Book[] loaded = new Book[BOOKS];
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Dataset.createDirectory();
+		Dataset.writeBooks(new File(dir, "books"), format, BOOKS, 3);
+		Dataset.writeAuthors(new File(dir, "books/authors"), 3);
+		books = EntityMap.instance(Book.class, new File(dir, "books/*." + format));
+		// Every get loads the file
+		books.setCachePolicy(CachePolicy.none());
+		for (int i = 0; i < BOOKS; i++) {
+			keys[i] = String.valueOf(i);
+			loaded[i] = books.get(keys[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Dataset.delete(dir);
+	}
+
+	@Benchmark
+	public Book load() {
+		return books.get(keys[next++ % BOOKS]);
+	}
+
+	@Benchmark
+	public void save() throws IOException {
+		Book book = loaded[next++ % BOOKS];
+		book.sold++;
+		book.save();
+	}
+}
@@ -0,0 +1,71 @@
+package com.ryanheise.persistp.benchmarks;
+
+import com.ryanheise.persistp.CachePolicy;
+import com.ryanheise.persistp.EntityMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cache hits in a map of entities with an int @Key, looked up by a numeric
+ * key and by the equivalent string key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class NumericLookupBenchmark {
+	@Param({ "1000", "100000" })
+	int authors;
+
+	@Param({ "soft", "strong" })
+	String policy;
+
+	private File dir;
+	private EntityMap<Author> map;
+	private String[] keys;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Dataset.createDirectory();
+		Dataset.writeAuthors(new File(dir, "authors"), authors);
+		map = EntityMap.instance(Author.class, new File(dir, "authors/*.properties"));
+		map.setCachePolicy(policy.equals("soft") ? CachePolicy.soft() : CachePolicy.strong());
+		keys = new String[authors];
+		for (int i = 0; i < authors; i++) {
+			keys[i] = String.valueOf(i);
+			map.get(i);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Dataset.delete(dir);
+	}
+
+	@Benchmark
+	public Author getInt() {
+		return map.get(next++ % authors);
+	}
+
+	@Benchmark
+	public Author getString() {
+		return map.get(keys[next++ % authors]);
+	}
+}
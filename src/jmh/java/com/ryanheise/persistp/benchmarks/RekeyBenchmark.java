@@ -0,0 +1,61 @@
+package com.ryanheise.persistp.benchmarks;
+
+import com.ryanheise.persistp.EntityMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Changes the key of a book stored as books/&lt;key&gt;/book.properties, which
+ * renames its directory and rebinds the child map of its authors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RekeyBenchmark {
+	@Param({ "10", "1000" })
+	int children;
+
+	private File dir;
+	private Book book;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Dataset.createDirectory();
+		File bookDir = new File(dir, "books/a");
+		bookDir.mkdirs();
+		Dataset.writeBook(new File(bookDir, "book.properties"), 0, "");
+		Dataset.writeAuthors(new File(bookDir, "authors"), children);
+		EntityMap<Book> books = EntityMap.instance(Book.class, new File(dir, "books/*/book.properties"));
+		book = books.get("a");
+		// Load the children so that each rekey rebinds a populated map
+		book.authorsMap.values().forEach(author -> {});
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Dataset.delete(dir);
+	}
+
+	@Benchmark
+	public void rekey() throws IOException {
+		book.id = book.id.equals("a") ? "b" : "a";
+		book.save();
+	}
+}
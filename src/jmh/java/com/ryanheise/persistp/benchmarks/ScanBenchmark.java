@@ -0,0 +1,65 @@
+package com.ryanheise.persistp.benchmarks;
+
+import com.ryanheise.persistp.EntityMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * size() and key iteration over directories of entity files, with the key
+ * index revalidated by modification time or rescanned on every access.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ScanBenchmark {
+	@Param({ "1000", "100000", "1000000" })
+	int files;
+
+	@Param({ "MODIFIED", "ALWAYS" })
+	EntityMap.Revalidation revalidation;
+
+	private File dir;
+	private EntityMap<Author> authors;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Dataset.createDirectory();
+		Dataset.writeAuthors(new File(dir, "authors"), files);
+		authors = EntityMap.instance(Author.class, new File(dir, "authors/*.properties"));
+		authors.setRevalidation(revalidation);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Dataset.delete(dir);
+	}
+
+	@Benchmark
+	public int size() {
+		return authors.size();
+	}
+
+	@Benchmark
+	public void iterateKeys(Blackhole blackhole) {
+		for (String key : authors.keySet())
+			blackhole.consume(key);
+	}
+}
@@ -0,0 +1,88 @@
+package com.ryanheise.persistp;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the asynchronous operations of entities and maps. Virtual threads
+ * are used when the runtime supports them, and a pool of daemon threads
+ * otherwise.
+ *
+ * @see EntityMap#setAsyncExecutor(Executor)
+ */
+final class Async {
+	private static volatile Executor executor = defaultExecutor();
+	// The last write queued for each entity with a write in progress
+	private static final Map<Entity, CompletableFuture<Void>> writes = new ConcurrentHashMap<Entity, CompletableFuture<Void>>();
+
+	private Async() {
+	}
+
+	private static Executor defaultExecutor() {
+		try {
+			// Java 21 and later
+			return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "persistp-async");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	static Executor getExecutor() {
+		return executor;
+	}
+
+	static void setExecutor(Executor executor) {
+		Async.executor = executor != null ? executor : defaultExecutor();
+	}
+
+	static <T> CompletableFuture<T> supply(Callable<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		execute(task, future);
+		return future;
+	}
+
+	/**
+	 * Runs a write to the entity after the writes to it queued earlier have
+	 * completed, whether or not they succeeded.
+	 */
+	static CompletableFuture<Void> write(Entity entity, Callable<Void> task) {
+		if (Transaction.current() != null)
+			throw new IllegalStateException("Asynchronous operations cannot be part of a transaction");
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		CompletableFuture<Void> previous = writes.put(entity, future);
+		if (previous == null)
+			execute(task, future);
+		else
+			previous.whenComplete((result, e) -> execute(task, future));
+		future.whenComplete((result, e) -> writes.remove(entity, future));
+		return future;
+	}
+
+	private static <T> void execute(Callable<T> task, CompletableFuture<T> future) {
+		try {
+			executor.execute(() -> run(task, future));
+		}
+		catch (RuntimeException e) {
+			// Such as a RejectedExecutionException from a shut down executor
+			future.completeExceptionally(e);
+		}
+	}
+
+	private static <T> void run(Callable<T> task, CompletableFuture<T> future) {
+		try {
+			future.complete(task.call());
+		}
+		catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+	}
+}
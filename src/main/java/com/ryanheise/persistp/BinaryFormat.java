@@ -0,0 +1,257 @@
+package com.ryanheise.persistp;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The .bin entity format: a header followed by properties sorted by name,
+ * each a name, a type tag and a value. Integers are zigzag varints, doubles
+ * are raw IEEE 754 bits, dates are varint epoch milliseconds and lists are a
+ * varint count of length-prefixed strings. Properties not bound to a field
+ * are stored as strings.
+ */
+final class BinaryFormat {
+	private static final byte[] MAGIC = { 'P', 'P', 'B' };
+	static final int VERSION = 1;
+
+	static final int STRING = 0;
+	static final int LONG = 1;
+	static final int DOUBLE = 2;
+	static final int BOOLEAN = 3;
+	static final int DATE = 4;
+	static final int LIST = 5;
+
+	private BinaryFormat() {
+	}
+
+	static final class Writer {
+		private byte[] buffer = new byte[256];
+		private int size;
+
+		Writer(int count) {
+			for (byte b : MAGIC)
+				writeByte(b);
+			writeByte(VERSION);
+			writeVarint(count);
+		}
+
+		void writeString(String name, String value) {
+			writeName(name, STRING);
+			writeUtf(value);
+		}
+
+		void writeLong(String name, long value) {
+			writeName(name, LONG);
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		void writeDouble(String name, double value) {
+			writeName(name, DOUBLE);
+			long bits = Double.doubleToRawLongBits(value);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				writeByte((int)(bits >>> shift));
+		}
+
+		void writeBoolean(String name, boolean value) {
+			writeName(name, BOOLEAN);
+			writeByte(value ? 1 : 0);
+		}
+
+		void writeDate(String name, long millis) {
+			writeName(name, DATE);
+			writeVarint((millis << 1) ^ (millis >> 63));
+		}
+
+		void writeList(String name, List<String> values) {
+			writeName(name, LIST);
+			writeVarint(values.size());
+			for (String value : values)
+				writeUtf(value);
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, size);
+		}
+
+		private void writeName(String name, int tag) {
+			writeUtf(name);
+			writeByte(tag);
+		}
+
+		private void writeUtf(String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+		private void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				writeByte((int)((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((int)value);
+		}
+
+		private void writeByte(int b) {
+			ensure(1);
+			buffer[size++] = (byte)b;
+		}
+
+		private void ensure(int n) {
+			if (size + n > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + n));
+		}
+	}
+
+	/** Reads the properties of an entity one at a time with {@link #next()}. */
+	static final class Reader {
+		private final ByteBuffer in;
+		private int remaining;
+		private String name;
+		private int tag;
+
+		Reader(ByteBuffer in) throws IOException {
+			this.in = in;
+			try {
+				for (byte b : MAGIC) {
+					if (in.get() != b)
+						throw new IOException("Not a .bin entity");
+				}
+				int version = in.get();
+				if (version != VERSION)
+					throw new IOException("Unsupported .bin version " + version);
+				remaining = (int)readVarint();
+			}
+			catch (BufferUnderflowException e) {
+				throw new IOException("Truncated .bin entity");
+			}
+		}
+
+		/** Advances to the next property, returning false if there are no more. */
+		boolean next() {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			name = readUtf();
+			tag = in.get();
+			return true;
+		}
+
+		String name() {
+			return name;
+		}
+
+		int tag() {
+			return tag;
+		}
+
+		long longValue() {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		double doubleValue() {
+			return Double.longBitsToDouble(in.getLong());
+		}
+
+		boolean booleanValue() {
+			return in.get() != 0;
+		}
+
+		String stringValue() {
+			return readUtf();
+		}
+
+		List<String> listValue() {
+			int count = (int)readVarint();
+			List<String> values = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++)
+				values.add(readUtf());
+			return values;
+		}
+
+		/**
+		 * Reads the value in the form it takes in a .properties file. Dates
+		 * are formatted with the field's @Temporal pattern if one is given.
+		 */
+		String valueAsString(EntityField field) {
+			switch (tag) {
+			case LONG:
+				return String.valueOf(longValue());
+			case DOUBLE:
+				return String.valueOf(doubleValue());
+			case BOOLEAN:
+				return String.valueOf(booleanValue());
+			case DATE: {
+				long millis = longValue();
+				return field != null && field.temporal != null ? EntityCodec.formatDate(new Date(millis), field.temporal) : String.valueOf(millis);
+			}
+			case LIST:
+				return String.join(",", listValue());
+			default:
+				return stringValue();
+			}
+		}
+
+		/** Skips the value of the current property. */
+		void skipValue() {
+			switch (tag) {
+			case LONG:
+			case DATE:
+				readVarint();
+				break;
+			case DOUBLE:
+				in.position(in.position() + 8);
+				break;
+			case BOOLEAN:
+				in.get();
+				break;
+			case LIST:
+				for (int count = (int)readVarint(); count > 0; count--)
+					skipUtf();
+				break;
+			default:
+				skipUtf();
+			}
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = in.get();
+				value |= (long)(b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+		}
+
+		private void skipUtf() {
+			int length = (int)readVarint();
+			if (length > in.remaining())
+				throw new BufferUnderflowException();
+			in.position(in.position() + length);
+		}
+
+		private String readUtf() {
+			int length = (int)readVarint();
+			if (length < 0 || length > in.remaining())
+				throw new BufferUnderflowException();
+			if (in.hasArray()) {
+				String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+				in.position(in.position() + length);
+				return s;
+			}
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
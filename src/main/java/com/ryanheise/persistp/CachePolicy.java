@@ -0,0 +1,127 @@
+package com.ryanheise.persistp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * How an EntityMap caches the entities it has loaded. The policy can be set
+ * on a map with {@link EntityMap#setCachePolicy}, or as the default for all
+ * maps of an entity class with {@link #setDefault(Class, CachePolicy)}.
+ *
+ * Only the soft and strong policies keep returning the same instance for a
+ * key while that instance is referenced. The bounded policies and none may
+ * evict an entity that a caller still holds, after which a get of its key
+ * loads a new instance.
+ */
+public abstract class CachePolicy {
+	private static volatile CachePolicy defaultPolicy = soft();
+	private static final Map<Class<?>, CachePolicy> classPolicies = new ConcurrentHashMap<Class<?>, CachePolicy>();
+
+	/** Cached entities may be reclaimed by the garbage collector when memory is low. This is the default. */
+	public static CachePolicy soft() {
+		return new CachePolicy() {
+			@Override
+			<X extends Entity> EntityCache<X> create() {
+				return new EntityCache.Soft<X>();
+			}
+
+			@Override
+			<X extends Entity> EntityCache<X> create(boolean numericKeys) {
+				return numericKeys ? new EntityCache.NumericSoft<X>() : create();
+			}
+		};
+	}
+
+	/** Cached entities are kept until removed from the map. */
+	public static CachePolicy strong() {
+		return new CachePolicy() {
+			@Override
+			<X extends Entity> EntityCache<X> create() {
+				return new EntityCache.Strong<X>();
+			}
+
+			@Override
+			<X extends Entity> EntityCache<X> create(boolean numericKeys) {
+				return numericKeys ? new EntityCache.NumericStrong<X>() : create();
+			}
+		};
+	}
+
+	/** Entities are not cached, and every lookup loads the entity. */
+	public static CachePolicy none() {
+		return new CachePolicy() {
+			@Override
+			<X extends Entity> EntityCache<X> create() {
+				return new EntityCache.None<X>();
+			}
+		};
+	}
+
+	/** At most maximumSize entities are cached, evicting the least recently used. */
+	public static CachePolicy lru(int maximumSize) {
+		return lru(maximumSize, entity -> 1);
+	}
+
+	/**
+	 * Entities are cached up to a total weight of maximumWeight, evicting
+	 * the least recently used.
+	 */
+	public static CachePolicy lru(long maximumWeight, ToLongFunction<? super Entity> weigher) {
+		if (maximumWeight < 1)
+			throw new IllegalArgumentException("maximumWeight must be positive");
+		return new CachePolicy() {
+			@Override
+			<X extends Entity> EntityCache<X> create() {
+				return new EntityCache.Lru<X>(maximumWeight, weigher);
+			}
+		};
+	}
+
+	/**
+	 * At most maximumSize entities are cached, using W-TinyLFU to decide
+	 * which entities to keep. This admits a new entity only if it is used
+	 * more frequently than the entity it would evict, which keeps hot
+	 * entities cached through scans of cold ones.
+	 */
+	public static CachePolicy tinyLfu(int maximumSize) {
+		if (maximumSize < 1)
+			throw new IllegalArgumentException("maximumSize must be positive");
+		return new CachePolicy() {
+			@Override
+			<X extends Entity> EntityCache<X> create() {
+				return new EntityCache.TinyLfu<X>(maximumSize);
+			}
+		};
+	}
+
+	/** Sets the policy for maps created from now on whose entity class has no policy of its own. */
+	public static void setDefault(CachePolicy policy) {
+		if (policy == null)
+			throw new NullPointerException();
+		defaultPolicy = policy;
+	}
+
+	/** Sets the policy for maps of the given entity class created from now on, or null to use the default. */
+	public static void setDefault(Class<? extends Entity> entityClass, CachePolicy policy) {
+		if (policy == null)
+			classPolicies.remove(entityClass);
+		else
+			classPolicies.put(entityClass, policy);
+	}
+
+	static CachePolicy forClass(Class<?> entityClass) {
+		CachePolicy policy = classPolicies.get(entityClass);
+		return policy != null ? policy : defaultPolicy;
+	}
+
+	abstract <X extends Entity> EntityCache<X> create();
+
+	/**
+	 * Creates a cache for a map whose keys are int or long ids, which the
+	 * unbounded policies store as primitives.
+	 */
+	<X extends Entity> EntityCache<X> create(boolean numericKeys) {
+		return create();
+	}
+}
@@ -0,0 +1,55 @@
+package com.ryanheise.persistp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the entity cache of an EntityMap. For a soft cache, an
+ * eviction is counted when a lookup finds that the garbage collector has
+ * reclaimed the entity. Each count is also passed to the {@link Metrics} set
+ * with {@link EntityMap#setMetrics}.
+ */
+public final class CacheStats {
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	// The map that owns the cache
+	volatile EntityMap<? extends Entity> map;
+
+	void hit() {
+		hits.increment();
+		EntityMap<? extends Entity> map = this.map;
+		if (map != null)
+			EntityMap.metrics.cacheHit(map.metricsName(), map.getEntityClass());
+	}
+
+	void miss() {
+		misses.increment();
+		EntityMap<? extends Entity> map = this.map;
+		if (map != null)
+			EntityMap.metrics.cacheMiss(map.metricsName(), map.getEntityClass());
+	}
+
+	void eviction() {
+		evictions.increment();
+		EntityMap<? extends Entity> map = this.map;
+		if (map != null)
+			EntityMap.metrics.cacheEviction(map.metricsName(), map.getEntityClass());
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats[hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+}
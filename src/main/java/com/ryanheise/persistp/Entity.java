@@ -2,13 +2,11 @@ package com.ryanheise.persistp;
 
 import java.util.Properties;
 import java.io.IOException;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
-import java.io.BufferedOutputStream;
 import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
-import java.lang.reflect.Field;
+import java.io.FileNotFoundException;
 import java.util.Date;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
@@ -18,62 +16,54 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
-import java.lang.reflect.ParameterizedType;
+import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.io.File;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 public abstract class Entity {
 	private String key;
-	private Properties props = new Properties();
-	private Map<Field,SimpleDateFormat> dateFormats = new HashMap<Field,SimpleDateFormat>();
-	private Field keyField;
+	private final Map<String,String> props = new HashMap<String,String>();
+	// The properties as last loaded or saved, used to skip unchanged saves
+	private Map<String,String> savedProps;
+	// The .bin format's equivalent of savedProps
+	private byte[] savedBytes;
+	private final EntityMetadata metadata;
+	private final ReentrantLock lock = new ReentrantLock();
 	private EntityContainer<? extends Entity> parentContainer;
+	// Set from newPartial until the constructor of the entity consumes it
+	private static final ThreadLocal<Boolean> constructingPartial = new ThreadLocal<Boolean>();
+	// True if only some fields were loaded, in which case the entity is read-only
+	private final boolean partial;
 
 	public Entity() {
+		metadata = EntityMetadata.of(getClass());
+		partial = constructingPartial.get() != null;
+		// Only this entity is partial, and not those its constructor creates
+		if (partial)
+			constructingPartial.remove();
 		try {
-			Class klass = getClass();
-			for (Field field : klass.getDeclaredFields()) {
-				field.setAccessible(true);
-				Key key = field.getAnnotation(Key.class);
-				if (key != null) {
-					if (keyField != null)
-						throw new IllegalStateException("Cannot have more than 1 field with @Key annotation");
-					else
-						keyField = field;
-				}
-				Class fieldType = field.getType();
-				FPattern fPattern = field.getAnnotation(FPattern.class);
-				if (fPattern != null) {
-					if (fieldType == Map.class)
+			// A partially loaded entity has no child containers
+			if (!partial) {
+				for (EntityField field : metadata.patternFields) {
+					if (field.type == Map.class)
 						initEntityMap(field);
-					else if (fieldType == List.class)
+					else if (field.type == List.class)
 						initEntityList(field);
-					else if (fieldType == One.class)
+					else if (field.type == One.class)
 						initOne(field);
-					else
-						throw new IllegalStateException(fieldType + " field doesn't support @FPattern");
-				}
-				else {
-					Prop prop = field.getAnnotation(Prop.class);
-					if (prop != null) {
-						if (fieldType == List.class) {
-							try {
-								ParameterizedType pType = (ParameterizedType)field.getGenericType(); 
-								Class<?> elementType = (Class<?>)pType.getActualTypeArguments()[0]; 
-								if (elementType == String.class)
-									field.set(this, new ArrayList<String>());
-								else if (elementType == Integer.class)
-									field.set(this, new ArrayList<Integer>());
-								else
-									throw new IllegalStateException(fieldType + " field has unsupported type for @Prop");
-							}
-							catch (IllegalAccessException e) {
-								throw new RuntimeException(e);
-							}
-						}
-					}
 				}
 			}
+			for (EntityField field : metadata.listFields) {
+				if (field.elementType == String.class)
+					field.set(this, new ArrayList<String>());
+				else if (field.elementType == Integer.class)
+					field.set(this, new ArrayList<Integer>());
+			}
 		}
 		catch (IOException e) {
 			throw new RuntimeException(e);
@@ -81,43 +71,144 @@ public abstract class Entity {
 	}
 
 	void load(One<? extends Entity> parentOne) throws IOException {
+		long start = System.nanoTime();
 		setParent(parentOne);
 		load();
+		EntityMap.metrics.loaded(metricsName(), getClass(), System.nanoTime() - start);
 	}
 
 	void load(EntityMap<? extends Entity> parentMap, String key) throws IOException, ParseException {
+		long start = System.nanoTime();
 		setKeyProp(key);
 		setParent(parentMap);
 		load();
+		EntityMap.metrics.loaded(metricsName(), getClass(), System.nanoTime() - start);
+	}
+
+	// The name of the parent container in Metrics
+	private String metricsName() {
+		if (parentContainer instanceof EntityMap)
+			return ((EntityMap<? extends Entity>)parentContainer).metricsName();
+		return ((One<? extends Entity>)parentContainer).metricsName();
+	}
+
+	// The name in Metrics of a child container, which is its @FPattern under
+	// this entity's directory as written in the parent container's pattern,
+	// so that the child containers of every entity in a container share one
+	// name
+	private String metricsName(EntityField field) throws IOException {
+		String name = metricsName();
+		String directory = isDirectoryFormat() ? name : new File(name).getParent();
+		return new File(directory, field.pattern).getPath();
+	}
+
+	/**
+	 * Creates an entity without its child containers for loading only some
+	 * of its fields.
+	 */
+	static <X extends Entity> X newPartial(Class<X> entityClass) throws ReflectiveOperationException {
+		constructingPartial.set(Boolean.TRUE);
+		try {
+			return entityClass.getDeclaredConstructor().newInstance();
+		}
+		finally {
+			constructingPartial.remove();
+		}
+	}
+
+	// Loads the key and the given fields only. The entity is not bound to its
+	// container, so its child containers and back references are not set.
+	void loadPartial(EntityMap<? extends Entity> parentMap, String key, EntityField[] fields) throws IOException, ParseException {
+		setKeyProp(key);
+		parentContainer = parentMap;
+		File file = getEntityFile();
+		if (isDirectory(file))
+			return;
+		ByteBuffer data = readData(file);
+		if (isBinaryFormat()) {
+			loadBinary(data, fields, false);
+			return;
+		}
+		readProperties(data);
+		for (EntityField field : fields) {
+			String s = props.get(field.propName);
+			if (s == null)
+				s = field.initial;
+			setField(field, s);
+		}
+	}
+
+	private static boolean isDirectory(File file) {
+		EntityArchive archive = EntityArchive.containing(file);
+		return archive != null ? archive.isDirectory(file) : file.isDirectory();
+	}
+
+	private ByteBuffer readData(File file) throws IOException {
+		ByteBuffer data = storage().readBuffer(key);
+		if (data == null)
+			throw new FileNotFoundException(file.getPath());
+		EntityMap.metrics.read(metricsName(), getClass(), data.remaining());
+		return data;
+	}
+
+	private void readProperties(ByteBuffer data) throws IOException, ParseException {
+		if (isPropertiesFormat())
+			PropertiesCodec.read(data, props::put);
+		else
+			readXml(data);
+	}
+
+	private void readXml(ByteBuffer data) throws IOException {
+		Properties xml = new Properties();
+		try (InputStream in = new ByteBufferInputStream(data)) {
+			xml.loadFromXML(in);
+		}
+		for (String name : xml.stringPropertyNames())
+			props.put(name, xml.getProperty(name));
 	}
 
 	protected void load() throws IOException {
 		File file = getEntityFile();
-		if (file.isDirectory()) {
+		if (isDirectory(file)) {
 			// Nothing to load, and key has already been set
 		}
+		else if (isBinaryFormat()) {
+			ByteBuffer data = readData(file);
+			savedBytes = new byte[data.remaining()];
+			data.duplicate().get(savedBytes);
+			try {
+				loadBinary(data, metadata.propFields, true);
+			}
+			catch (ParseException e) {
+				throw new IOException(e);
+			}
+		}
 		else {
-			try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
-				if (isPropertiesFormat())
-					props.load(in);
-				else
-					props.loadFromXML(in);
-				Class klass = getClass();
-				for (Field field : klass.getDeclaredFields()) {
-					field.setAccessible(true);
-					Class fieldType = field.getType();
-					String propName = propName(field);
-					if (propName != null) {
-						String s = props.getProperty(propName);
+			try {
+				if (metadata.codec != null) {
+					readProperties(readData(file));
+					codec().load(this);
+				}
+				else if (isPropertiesFormat()) {
+					// Fields are set as each property is read
+					PropertiesCodec.read(readData(file), (name, value) -> {
+						props.put(name, value);
+						EntityField field = metadata.propField(name);
+						if (field != null)
+							setField(field, value);
+					});
+					for (EntityField field : metadata.propFields) {
 						// If the property is not present, use the initial value as the default
-						if (s == null) {
-							Prop prop = field.getAnnotation(Prop.class);
-							if (prop != null) {
-								String initial = prop.initial();
-								if (initial != null && initial.length() > 0)
-									s = initial;
-							}
-						}
+						if (!props.containsKey(field.propName))
+							setField(field, field.initial);
+					}
+				}
+				else {
+					readXml(readData(file));
+					for (EntityField field : metadata.propFields) {
+						String s = props.get(field.propName);
+						if (s == null)
+							s = field.initial;
 						setField(field, s);
 					}
 				}
@@ -125,136 +216,251 @@ public abstract class Entity {
 			catch (ParseException e) {
 				throw new IOException(e);
 			}
+			savedProps = new HashMap<String,String>(props);
 		}
 	}
 
 	protected String getProperty(String key) {
-		return props.getProperty(key);
+		return props.get(key);
 	}
 
 	protected String getProperty(String key, String def) {
-		return props.getProperty(key, def);
+		return props.getOrDefault(key, def);
 	}
 
 	protected void setProperty(String key, String value) {
-		props.setProperty(key, value);
+		props.put(key, value);
 	}
 
 	protected void removeProperty(String key) {
 		props.remove(key);
 	}
 
-	public synchronized <X extends Entity> void saveAndAdd(List<X> list) throws IOException {
-		EntityList<X> parentList = (EntityList<X>)list;
-		Entity parent = parentList.getParent();
-		if (parent == null)
-			throw new IllegalArgumentException("List has no parent");
-		EntityMap<X> parentMap = parentList.getMap();
-		saveTo(parentMap);
-		parentList.add((X)this);
-		parent.save();
+	public <X extends Entity> void saveAndAdd(List<X> list) throws IOException {
+		lock.lock();
+		try {
+			EntityList<X> parentList = (EntityList<X>)list;
+			Entity parent = parentList.getParent();
+			if (parent == null)
+				throw new IllegalArgumentException("List has no parent");
+			EntityMap<X> parentMap = parentList.getMap();
+			saveTo(parentMap);
+			parentList.add((X)this);
+			parent.save();
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	private boolean isPropertiesFormat() throws IOException {
 		return getEntityFile().getName().endsWith(".properties");
 	}
 
-	private boolean isXmlFormat() throws IOException {
-		return getEntityFile().getName().endsWith(".xml");
+	private boolean isBinaryFormat() throws IOException {
+		return getEntityFile().getName().endsWith(".bin");
 	}
 
 	private boolean isDirectoryFormat() throws IOException {
-		return !isPropertiesFormat() && !isXmlFormat();
+		return !isFileFormat(getEntityFile());
 	}
 
-	// parent must be set before saving
-	public synchronized void save() throws IOException {
-		if (parentContainer == null)
-			throw new IllegalStateException("saveTo() required on first save");
-		
-		Class klass = getClass();
-		if (!isDirectoryFormat()) {
-			// Put the field values into props
-			for (Field field : klass.getDeclaredFields()) {
-				field.setAccessible(true);
-				String propName = propName(field);
-				if (propName == null) continue;
-				Object value = getField(field);
-				Class fieldType = field.getType();
-				if (fieldType == Integer.TYPE)
-					storeAsString(field);
-				else if (fieldType == Long.TYPE)
-					storeAsString(field);
-				else if (fieldType == Double.TYPE)
-					storeAsString(field);
-				else if (fieldType == Boolean.TYPE)
-					storeAsString(field);
-				else if (fieldType == Integer.class)
-					storeAsStringOrNull(field);
-				else if (fieldType == Long.class)
-					storeAsStringOrNull(field);
-				else if (fieldType == Double.class)
-					storeAsStringOrNull(field);
-				else if (fieldType == Boolean.class)
-					storeAsStringOrNull(field);
-				else if (fieldType == String.class)
-					storeStringOrNull(field);
-				else if (fieldType == Date.class)
-					storeDate(field);
-				else if (fieldType == List.class)
-					storeList(field);
+	// Returns whether entities matching a file pattern are stored in files
+	// rather than as directories
+	static boolean isFileFormat(File filePattern) {
+		String name = filePattern.getName();
+		return name.endsWith(".properties") || name.endsWith(".xml") || name.endsWith(".bin");
+	}
+
+	// Sets the given fields from a .bin entity, and the initial value of
+	// those not present. Values of other properties are kept as strings
+	// if keepOthers is true.
+	private void loadBinary(ByteBuffer data, EntityField[] fields, boolean keepOthers) throws IOException, ParseException {
+		EntityField[] propFields = metadata.propFields;
+		// Indexed like propFields. A projection sets only the fields it names.
+		boolean[] wanted = fields != propFields ? projection(fields) : null;
+		boolean[] loaded = new boolean[propFields.length];
+		try {
+			BinaryFormat.Reader reader = new BinaryFormat.Reader(data);
+			while (reader.next()) {
+				int i = metadata.propIndex(reader.name());
+				if (i >= 0 && (wanted == null || wanted[i])) {
+					setField(propFields[i], reader);
+					loaded[i] = true;
+				}
+				else if (keepOthers)
+					props.put(reader.name(), reader.valueAsString(i >= 0 ? propFields[i] : null));
 				else
-					throw new IOException("Unsupported type " + fieldType);
+					reader.skipValue();
 			}
 		}
-		// If this entity's key has changed, the file needs to be renamed
-		String newKey = getKeyFieldValue();
-		if (key != null && !key.equals(newKey)) {
-			parentContainer.rekeyEntity(key, newKey);
-			rebind();
-		}
-		else {
-			getEntityFile().getParentFile().mkdirs();
+		catch (BufferUnderflowException e) {
+			throw new IOException("Truncated .bin entity " + getEntityFile());
 		}
-		key = newKey;
-		File file = getEntityFile();
-		if (isDirectoryFormat()) {
-			// Create the directory
-			file.mkdirs();
+		for (int i = 0; i < propFields.length; i++) {
+			if (!loaded[i] && (wanted == null || wanted[i]))
+				setField(propFields[i], propFields[i].initial);
 		}
-		else {
-			// write out the properties to the file
-			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
-				if (isPropertiesFormat())
-					props.store(out, "");
-				else
-					props.storeToXML(out, "");
+	}
+
+	// Returns which of the @Prop fields, by index, are among the given fields
+	private boolean[] projection(EntityField[] fields) {
+		boolean[] projection = new boolean[metadata.propFields.length];
+		for (EntityField field : fields)
+			projection[metadata.propIndex(field.propName)] = true;
+		return projection;
+	}
+
+	// parent must be set before saving
+	public void save() throws IOException {
+		long start = System.nanoTime();
+		lock.lock();
+		try {
+			checkNotPartial();
+			if (parentContainer == null)
+				throw new IllegalStateException("saveTo() required on first save");
+			checkNotArchived();
+		
+			if (!isDirectoryFormat()) {
+				// Put the field values into props
+				if (metadata.codec != null)
+					codec().save(this);
+				else {
+					for (EntityField field : metadata.propFields) {
+						String value = field.codec.get(this);
+						if (value != null)
+							props.put(field.propName, value);
+						else
+							props.remove(field.propName);
+					}
+				}
+			}
+			// If this entity's key has changed, the file needs to be renamed
+			String newKey = getKeyFieldValue();
+			Transaction tx = checkTransaction();
+			boolean rekeyed = key != null && !key.equals(newKey);
+			byte[] data = isBinaryFormat() ? toBytes() : null;
+			boolean unchanged = data != null ? Arrays.equals(data, savedBytes) : savedProps != null && props.equals(savedProps);
+			if (!rekeyed && unchanged) {
+				// Nothing has changed since the last load or save
+				return;
+			}
+			if (tx != null)
+				tx.changing(this);
+			EntityMap<? extends Entity> parentMap = parentContainer instanceof EntityMap ? (EntityMap<? extends Entity>)parentContainer : null;
+			if (rekeyed) {
+				// Queued writes may be to files under the location being renamed
+				WriteBehind writeBehind = getWriteBehind();
+				if (writeBehind != null)
+					writeBehind.flush();
+				parentContainer.rekeyEntity(key, newKey);
+				rebind();
+			}
+			key = newKey;
+			if (isDirectoryFormat()) {
+				// Entities stored as directories are always in a FileStorage
+				((FileStorage)storage()).mkdirs(key);
+			}
+			else {
+				if (data != null)
+					savedBytes = data;
+				else {
+					data = toBytes();
+					savedProps = new HashMap<String,String>(props);
+				}
+				if (parentMap != null)
+					parentMap.saved(key, props);
+				storage().write(key, data);
+				EntityMap.metrics.written(metricsName(), getClass(), data.length);
 			}
+			EntityMap.metrics.saved(metricsName(), getClass(), System.nanoTime() - start);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Serializes the properties sorted by key and without a timestamp so
+	// that the same properties always produce the same bytes.
+	private byte[] toBytes() throws IOException {
+		if (isBinaryFormat())
+			return toBinary();
+		if (isPropertiesFormat())
+			return PropertiesCodec.write(props);
+		Properties sorted = new SortedProperties();
+		sorted.putAll(props);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sorted.storeToXML(out, "");
+		return out.toByteArray();
+	}
+
+	// Encodes the properties in the .bin format, using the field values for
+	// properties that are bound to a field.
+	private byte[] toBinary() {
+		Set<String> names = new TreeSet<String>();
+		names.addAll(props.keySet());
+		BinaryFormat.Writer out = new BinaryFormat.Writer(names.size());
+		for (String name : names) {
+			EntityField field = metadata.propField(name);
+			Class fieldType = field != null ? field.type : String.class;
+			if (fieldType == Integer.TYPE || fieldType == Long.TYPE || fieldType == Integer.class || fieldType == Long.class)
+				out.writeLong(name, ((Number)field.get(this)).longValue());
+			else if (fieldType == Double.TYPE || fieldType == Double.class)
+				out.writeDouble(name, (Double)field.get(this));
+			else if (fieldType == Boolean.TYPE || fieldType == Boolean.class)
+				out.writeBoolean(name, (Boolean)field.get(this));
+			else if (fieldType == Date.class)
+				out.writeDate(name, ((Date)field.get(this)).getTime());
+			else if (fieldType == List.class)
+				out.writeList(name, EntityCodec.splitKeys(props.get(name)));
+			else
+				out.writeString(name, props.get(name));
+		}
+		return out.toByteArray();
+	}
+
+	private static final class SortedProperties extends Properties {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Set<Map.Entry<Object,Object>> entrySet() {
+			Set<Map.Entry<Object,Object>> entries = new TreeSet<Map.Entry<Object,Object>>((a, b) -> a.getKey().toString().compareTo(b.getKey().toString()));
+			entries.addAll(super.entrySet());
+			return entries;
 		}
 	}
 
+	// Returns the storage of the parent container, which is a FileStorage
+	// unless the parent map has a storage of its own
+	private EntityStorage storage() {
+		if (parentContainer instanceof EntityMap)
+			return ((EntityMap<? extends Entity>)parentContainer).storage();
+		return ((One<? extends Entity>)parentContainer).storage();
+	}
+
+	WriteBehind getWriteBehind() {
+		if (parentContainer instanceof EntityMap)
+			return ((EntityMap<? extends Entity>)parentContainer).getWriteBehind();
+		Entity parent = parentContainer != null ? parentContainer.getParent() : null;
+		return parent != null ? parent.getWriteBehind() : null;
+	}
+
 	void rebind() throws IOException {
-		Class klass = getClass();
 		// invalidate child maps based on old file location
 		// and point them to the new location
-		for (Field field : klass.getDeclaredFields()) {
-			field.setAccessible(true);
-			FPattern fPattern = field.getAnnotation(FPattern.class);
-			if (fPattern != null) {
-				File filePattern = new File(getEntityDirectory(), fPattern.value());
-				Class fieldType = field.getType();
-				if (fieldType == Map.class) {
-					EntityMap<? extends Entity> map = (EntityMap<? extends Entity>)getField(field);
-					map.rebind(filePattern);
-				}
-				else if (fieldType == List.class) {
-					EntityList<? extends Entity> list = (EntityList<? extends Entity>)getField(field);
-					list.rebind(filePattern);
-				}
-				else if (fieldType == One.class) {
-					One<? extends Entity> one = (One<? extends Entity>)getField(field);
-					one.rebind(filePattern);
-				}
+		for (EntityField field : metadata.patternFields) {
+			File filePattern = new File(getEntityDirectory(), field.pattern);
+			if (field.type == Map.class) {
+				EntityMap<? extends Entity> map = (EntityMap<? extends Entity>)field.get(this);
+				map.rebind(filePattern);
+			}
+			else if (field.type == List.class) {
+				EntityList<? extends Entity> list = (EntityList<? extends Entity>)field.get(this);
+				list.rebind(filePattern);
+			}
+			else if (field.type == One.class) {
+				One<? extends Entity> one = (One<? extends Entity>)field.get(this);
+				one.rebind(filePattern);
 			}
 		}
 	}
@@ -279,57 +485,115 @@ public abstract class Entity {
 	}
 	*/
 
-	public synchronized final void saveTo(Map<String, ? extends Entity> parentContainer) throws IOException {
-		saveToContainer((EntityContainer<? extends Entity>)parentContainer);
+	public final void saveTo(Map<String, ? extends Entity> parentContainer) throws IOException {
+		lock.lock();
+		try {
+			saveToContainer((EntityContainer<? extends Entity>)parentContainer);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public final void saveTo(One<? extends Entity> parentContainer) throws IOException {
+		lock.lock();
+		try {
+			saveToContainer(parentContainer);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private final void saveToContainer(EntityContainer<? extends Entity> parentContainer) throws IOException {
+		lock.lock();
+		try {
+			checkNotPartial();
+			if (!parentContainer.isBound())
+				throw new IllegalStateException("Cannot save to unbound container");
+			if (parentContainer != this.parentContainer) {
+				savedProps = null;
+				savedBytes = null;
+			}
+			setParent(parentContainer);
+			save();
+			putEntity();
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
-	public synchronized final void saveTo(One<? extends Entity> parentContainer) throws IOException {
-		saveToContainer(parentContainer);
+	/**
+	 * Saves this entity on the executor set with
+	 * {@link EntityMap#setAsyncExecutor}. Saves and deletes of the same
+	 * entity through saveAsync and deleteAsync are applied in the order they
+	 * were called. The fields are read when the save runs.
+	 */
+	public CompletableFuture<Void> saveAsync() {
+		return Async.write(this, () -> {
+			save();
+			return null;
+		});
 	}
 
-	private synchronized final void saveToContainer(EntityContainer<? extends Entity> parentContainer) throws IOException {
-		if (!parentContainer.isBound())
-			throw new IllegalStateException("Cannot save to unbound container");
-		setParent(parentContainer);
-		save();
-		putEntity();
+	/** Deletes this entity on the executor, after its earlier asynchronous saves. */
+	public CompletableFuture<Void> deleteAsync() {
+		return Async.write(this, () -> {
+			delete();
+			return null;
+		});
 	}
 
-	public synchronized void delete() throws IOException {
-		// Delete children of this entity
-		Class klass = getClass();
-		for (Field field : klass.getDeclaredFields()) {
-			field.setAccessible(true);
-			FPattern fPattern = field.getAnnotation(FPattern.class);
-			if (fPattern != null) {
-				File filePattern = new File(getEntityDirectory(), fPattern.value());
-				Class fieldType = field.getType();
-				if (fieldType == Map.class) {
-					EntityMap<? extends Entity> map = (EntityMap<? extends Entity>)getField(field);
+	public void delete() throws IOException {
+		long start = System.nanoTime();
+		lock.lock();
+		try {
+			checkNotPartial();
+			checkNotArchived();
+			// Delete children of this entity
+			for (EntityField field : metadata.patternFields) {
+				if (field.type == Map.class) {
+					EntityMap<? extends Entity> map = (EntityMap<? extends Entity>)field.get(this);
 					map.delete();
 				}
 				/* In the future, List may be a quasi entity container, and we can generalise these 3 cases.
-				else if (fieldType == List.class) {
-					EntityList<? extends Entity> list = (EntityList<? extends Entity>)getField(field);
+				else if (field.type == List.class) {
+					EntityList<? extends Entity> list = (EntityList<? extends Entity>)field.get(this);
 					list.delete();
 				}
 				*/
-				else if (fieldType == One.class) {
-					One<? extends Entity> one = (One<? extends Entity>)getField(field);
+				else if (field.type == One.class) {
+					One<? extends Entity> one = (One<? extends Entity>)field.get(this);
 					one.delete();
 				}
 			}
+
+			// Delete this entity
+			Transaction tx = checkTransaction();
+			if (tx != null)
+				tx.changing(this);
+			parentContainer.removeEntity(getKeyFieldValue());
+			storage().delete(getKeyFieldValue());
+			// Nothing is stored any more, so a later save must write the file
+			key = null;
+			savedProps = null;
+			savedBytes = null;
+			EntityMap.metrics.deleted(metricsName(), getClass(), System.nanoTime() - start);
 		}
+		finally {
+			lock.unlock();
+		}
+	}
 
-		// Delete this entity
-		parentContainer.removeEntity(getKeyFieldValue());
-		File current = getEntityFile().getCanonicalFile();
+	// Deletes the file and any parent directories left empty
+	static void deleteFile(File current) throws IOException {
 		do {
 			if (current.isFile()) {
 				if (!current.delete())
 					throw new IOException("Failed to delete " + current);
 			}
-			else if (current.isDirectory() && current.list().length == 0) {
+			else if (current.isDirectory() && EntityIndex.deleteOrphanedFiles(current)) {
 				if (!current.delete())
 					throw new IOException("Failed to delete " + current);
 			}
@@ -340,25 +604,70 @@ public abstract class Entity {
 		while ((current = current.getParentFile()) != null);
 	}
 
-	String getKeyFieldValue() {
-		if (keyField == null)
-			return null;
-		keyField.setAccessible(true);
-		return String.valueOf(getField(keyField));
+	// Returns the active transaction. Only the files of a FileStorage can be
+	// changed in a transaction.
+	private Transaction checkTransaction() {
+		Transaction tx = Transaction.current();
+		if (tx != null && !(storage() instanceof FileStorage))
+			throw new IllegalStateException("Entities in an EntityStorage cannot be modified in a transaction");
+		return tx;
+	}
+
+	// Returns what restores the key and the properties last written, for
+	// when a transaction that saves this entity is rolled back, so that the
+	// next save writes the entity again
+	Runnable restorer() {
+		String key = this.key;
+		Map<String,String> savedProps = this.savedProps;
+		byte[] savedBytes = this.savedBytes;
+		return () -> {
+			lock.lock();
+			try {
+				this.key = key;
+				this.savedProps = savedProps;
+				this.savedBytes = savedBytes;
+			}
+			finally {
+				lock.unlock();
+			}
+		};
 	}
 
-	private Object getField(Field field) {
-		try {
-			return field.get(this);
-		}
-		catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
+	private void checkNotPartial() {
+		if (partial)
+			throw new IllegalStateException("Cannot modify a partially loaded entity");
+	}
+
+	private void checkNotArchived() throws IOException {
+		EntityArchive archive = EntityArchive.containing(getEntityFile());
+		if (archive != null)
+			throw new IOException("Cannot modify " + getEntityFile() + ": " + archive.getFile() + " is read-only");
+	}
+
+	// Returns whether this entity was last loaded or saved under the key it
+	// has now
+	boolean isStoredUnderKey() {
+		return key != null && key.equals(getKeyFieldValue());
+	}
+
+	String getKeyFieldValue() {
+		if (metadata.codec != null)
+			return codec().getKey(this);
+		if (metadata.keyField == null)
+			return null;
+		return String.valueOf(metadata.keyField.get(this));
 	}
 
 	private void setKeyProp(String key) throws IOException, ParseException {
 		this.key = key;
-		setField(keyField, key);
+		if (metadata.codec != null)
+			codec().setKey(this, key);
+		else
+			setField(metadata.keyField, key);
+	}
+
+	private EntityCodec<Entity> codec() {
+		return (EntityCodec<Entity>)metadata.codec;
 	}
 
 	protected File getEntityFile() throws IOException {
@@ -377,230 +686,103 @@ public abstract class Entity {
 	private void setParent(EntityContainer<? extends Entity> parentContainer) throws IOException {
 		Entity parent = parentContainer.getParent();
 		this.parentContainer = parentContainer;
-		Class klass = getClass();
-		for (Field field : klass.getDeclaredFields()) {
-			field.setAccessible(true);
-			Class fieldType = field.getType();
-			FPattern fPattern = field.getAnnotation(FPattern.class);
-			if (fPattern != null) {
-				File filePattern = new File(getEntityDirectory(), fPattern.value());
-				if (fieldType == Map.class) {
-					//EntityMap<? extends Entity> map = (EntityMap<? extends Entity>)getField(field);
-					//map.bind(filePattern);
-					// It is safe to reinitialise the map field. The map would have been
-					// empty because entities cannot be added to an EntityMap until it's
-					// filePattern is known.
-					initEntityMap(field, filePattern);
-				}
-				else if (fieldType == List.class) {
-					EntityList<? extends Entity> list = (EntityList<? extends Entity>)getField(field);
-					list.bind(filePattern);
-				}
-				else if (fieldType == One.class) {
-					One<? extends Entity> one = (One<? extends Entity>)getField(field);
-					one.bind(filePattern);
-				}
+		for (EntityField field : metadata.patternFields) {
+			File filePattern = new File(getEntityDirectory(), field.pattern);
+			if (field.type == Map.class) {
+				//EntityMap<? extends Entity> map = (EntityMap<? extends Entity>)field.get(this);
+				//map.bind(filePattern);
+				// It is safe to reinitialise the map field. The map would have been
+				// empty because entities cannot be added to an EntityMap until it's
+				// filePattern is known.
+				initEntityMap(field, filePattern);
+				((EntityMap<? extends Entity>)field.get(this)).setMetricsName(metricsName(field));
 			}
-			if (field.getAnnotation(BackRef.class) != null && parent != null && fieldType == parent.getClass()) {
-				try {
-					field.set(this, parent);
-				}
-				catch (IllegalAccessException e) {
-					throw new RuntimeException(e);
-				}
+			else if (field.type == List.class) {
+				EntityList<? extends Entity> list = (EntityList<? extends Entity>)field.get(this);
+				list.bind(filePattern);
+				list.getMap().setMetricsName(metricsName(field));
+			}
+			else if (field.type == One.class) {
+				One<? extends Entity> one = (One<? extends Entity>)field.get(this);
+				one.bind(filePattern);
+				one.setMetricsName(metricsName(field));
 			}
 		}
-	}
-
-	private SimpleDateFormat df(Field field) throws IOException {
-		SimpleDateFormat df = dateFormats.get(field);
-		if (df == null) {
-			Temporal temporal = field.getAnnotation(Temporal.class);
-			if (temporal == null)
-				throw new IOException("Date field " + field.getName() + " requires @Temporal annotation");
-			df = new SimpleDateFormat(temporal.value());
-			dateFormats.put(field, df);
+		if (parent != null) {
+			for (EntityField field : metadata.backRefFields) {
+				if (field.type == parent.getClass())
+					field.set(this, parent);
+			}
 		}
-		return df;
 	}
 
-	private void initEntityList(Field field) throws IOException {
-		try {
-			ParameterizedType pType = (ParameterizedType)field.getGenericType(); 
-			Class<? extends Entity> elementType = (Class<? extends Entity>)pType.getActualTypeArguments()[0]; 
-			EntityList<? extends Entity> list = EntityList.create(this, elementType);
-			field.setAccessible(true);
-			field.set(this, list);
-		}
-		catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
+	private void initEntityList(EntityField field) throws IOException {
+		Class<? extends Entity> elementType = (Class<? extends Entity>)field.elementType;
+		EntityList<? extends Entity> list = EntityList.create(this, elementType);
+		field.set(this, list);
 	}
 
-	private void initEntityMap(Field field) throws IOException {
+	private void initEntityMap(EntityField field) throws IOException {
 		initEntityMap(field, null);
 	}
 
-	private void initEntityMap(Field field, File filePattern) throws IOException {
-		try {
-			ParameterizedType pType = (ParameterizedType)field.getGenericType(); 
-			Class<? extends Entity> elementType = (Class<? extends Entity>)pType.getActualTypeArguments()[1]; 
-			EntityMap<? extends Entity> map = EntityMap.instance(this, elementType, filePattern);
-			field.setAccessible(true);
-			field.set(this, map);
-		}
-		catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
-	}
-
-	private void initOne(Field field) throws IOException {
-		try {
-			ParameterizedType pType = (ParameterizedType)field.getGenericType();
-			Class<? extends Entity> elementType = (Class<? extends Entity>)pType.getActualTypeArguments()[0];
-			One<? extends Entity> one = new One(this, elementType);
-			field.setAccessible(true);
-			field.set(this, one);
-		}
-		catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
-	}
-
-	private void storeAsString(Field field) {
-		props.setProperty(propName(field), String.valueOf(getField(field)));
-	}
-
-	private void storeAsStringOrNull(Field field) {
-		String key = propName(field);
-		Object value = getField(field);
-		if (value != null)
-			props.setProperty(key, String.valueOf(value));
-		else
-			props.remove(key);
-	}
-
-	private void storeStringOrNull(Field field) {
-		String key = propName(field);
-		String value = (String)getField(field);
-		if (value != null)
-			props.setProperty(key, value);
-		else
-			props.remove(key);
-	}
-
-	private void storeDate(Field field) throws IOException {
-		SimpleDateFormat df = df(field);
-		props.setProperty(propName(field), df.format((Date)getField(field)));
-	}
-
-	/** This performs a shallow store of the key list only. It assumes each element has already been stored. */
-	private void storeList(Field field) {
-		String propName = propName(field);
-		ParameterizedType pType = (ParameterizedType)field.getGenericType(); 
-		Class<?> elementType = (Class<?>)pType.getActualTypeArguments()[0]; 
-		if (Entity.class.isAssignableFrom(elementType)) {
-			EntityList<? extends Entity> list = (EntityList<? extends Entity>)getField(field);
-			props.setProperty(propName, String.join(",", list.stream().map(Entity::getKeyFieldValue).collect(Collectors.toList())));
-		}
-		else {
-			List<?> list = (List<?>)getField(field);
-			props.setProperty(propName, String.join(",", list.stream().map(String::valueOf).collect(Collectors.toList())));
-		}
-	}
-
-	private int parseInt(String s, int def) {
-		try {
-			return Integer.parseInt(s);
-		}
-		catch (Exception e) {
-			return def;
-		}
-	}
-
-	private long parseLong(String s, long def) {
-		try {
-			return Long.parseLong(s);
-		}
-		catch (Exception e) {
-			return def;
-		}
-	}
-
-	private double parseDouble(String s, double def) {
-		try {
-			return Double.parseDouble(s);
-		}
-		catch (Exception e) {
-			return def;
-		}
-	}
-
-	private void setField(Field field, String s) throws IOException, ParseException {
-		try {
-			Class fieldType = field.getType();
-			if (fieldType == Integer.TYPE)
-				field.setInt(this, parseInt(s, 0));
-			else if (fieldType == Long.TYPE)
-				field.setLong(this, parseLong(s, 0L));
-			else if (fieldType == Double.TYPE)
-				field.setDouble(this, parseDouble(s, 0.0));
-			else if (fieldType == Boolean.TYPE)
-				field.setBoolean(this, Boolean.parseBoolean(s != null ? s : "false"));
-			else if (fieldType == Integer.class)
-				field.set(this, (s == null || s.isEmpty()) ? null : new Integer(parseInt(s, 0)));
-			else if (fieldType == Long.class)
-				field.set(this, (s == null || s.isEmpty()) ? null : new Long(parseLong(s, 0L)));
-			else if (fieldType == Double.class)
-				field.set(this, (s == null || s.isEmpty()) ? null : new Double(parseDouble(s, 0.0)));
-			else if (fieldType == Boolean.class)
-				field.set(this, (s == null || s.isEmpty()) ? null : new Boolean(s));
-			else if (fieldType == String.class)
-				field.set(this, s != null ? s : "");
-			else if (fieldType == Date.class) {
-				final SimpleDateFormat df = df(field);
-				field.set(this, df.parse(s != null ? s : df.format(new Date())));
+	private void initEntityMap(EntityField field, File filePattern) throws IOException {
+		Class<? extends Entity> elementType = (Class<? extends Entity>)field.elementType;
+		EntityMap<? extends Entity> map = EntityMap.instance(this, elementType, filePattern);
+		field.set(this, map);
+	}
+
+	private void initOne(EntityField field) throws IOException {
+		Class<? extends Entity> elementType = (Class<? extends Entity>)field.elementType;
+		One<? extends Entity> one = new One(this, elementType);
+		field.set(this, one);
+	}
+
+	private void setField(EntityField field, BinaryFormat.Reader in) throws IOException, ParseException {
+		Class fieldType = field.type;
+		int tag = in.tag();
+		if (tag == BinaryFormat.LONG && fieldType == Integer.TYPE)
+			field.setInt(this, (int)in.longValue());
+		else if (tag == BinaryFormat.LONG && fieldType == Long.TYPE)
+			field.setLong(this, in.longValue());
+		else if (tag == BinaryFormat.DOUBLE && fieldType == Double.TYPE)
+			field.setDouble(this, in.doubleValue());
+		else if (tag == BinaryFormat.BOOLEAN && fieldType == Boolean.TYPE)
+			field.setBoolean(this, in.booleanValue());
+		else if (tag == BinaryFormat.LONG && fieldType == Integer.class)
+			field.set(this, (int)in.longValue());
+		else if (tag == BinaryFormat.LONG && fieldType == Long.class)
+			field.set(this, in.longValue());
+		else if (tag == BinaryFormat.DOUBLE && fieldType == Double.class)
+			field.set(this, in.doubleValue());
+		else if (tag == BinaryFormat.BOOLEAN && fieldType == Boolean.class)
+			field.set(this, in.booleanValue());
+		else if (tag == BinaryFormat.DATE && fieldType == Date.class)
+			field.set(this, new Date(in.longValue()));
+		else if (tag == BinaryFormat.LIST && fieldType == List.class) {
+			Class<?> elementType = field.elementType;
+			List<String> values = in.listValue();
+			if (Entity.class.isAssignableFrom(elementType))
+				((EntityList<? extends Entity>)field.get(this)).setKeys(values);
+			else if (elementType == String.class) {
+				List<String> list = (List<String>)field.get(this);
+				list.clear();
+				list.addAll(values);
 			}
-			else if (fieldType == List.class) {
-				List<String> keys = new ArrayList<String>();
-				String keysStr = (s != null ? s : "").trim();
-				String[] keysArray = keysStr.length() == 0 ? new String[0] : keysStr.split(", *");
-				for (String key : keysArray)
-					keys.add(key);
-				ParameterizedType pType = (ParameterizedType)field.getGenericType(); 
-				Class<?> elementType = (Class<?>)pType.getActualTypeArguments()[0]; 
-				if (Entity.class.isAssignableFrom(elementType)) {
-					EntityList<? extends Entity> list = (EntityList<? extends Entity>)getField(field);
-					list.setKeys(keys);
-				}
-				else if (elementType == String.class) {
-					List<String> list = (List<String>)getField(field);
-					list.clear();
-					list.addAll(keys);
-				}
-				else if (elementType == Integer.class) {
-					List<Integer> list = (List<Integer>)getField(field);
-					list.clear();
-					list.addAll(keys.stream().map(Integer::new).collect(Collectors.toList()));
-				}
+			else if (elementType == Integer.class) {
+				List<Integer> list = (List<Integer>)field.get(this);
+				list.clear();
+				for (String value : values)
+					list.add(Integer.valueOf(value));
 			}
-			else
-				throw new IOException("Unsupported type " + fieldType);
 		}
-		catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
+		else {
+			// Values written as strings, such as by FormatConverter
+			setField(field, in.valueAsString(field));
 		}
 	}
 
-	private String propName(Field field) {
-		Prop prop = field.getAnnotation(Prop.class);
-		if (prop == null) return null;
-		String propName = prop.name();
-		if (propName.isEmpty()) {
-			propName = prop.value();
-			if (propName.isEmpty())
-				propName = field.getName();
-		}
-		return propName;
+	private void setField(EntityField field, String s) throws IOException, ParseException {
+		field.codec.set(this, s);
 	}
 }
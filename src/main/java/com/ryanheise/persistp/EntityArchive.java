@@ -0,0 +1,200 @@
+package com.ryanheise.persistp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A read-only tree of entity files packed into a zip or jar archive. While
+ * open, the archive is mounted at its own path, so that the entity file
+ * pattern "books/*.properties" within data.zip is addressed as
+ * "data.zip/books/*.properties":
+ *
+ * <pre>
+ * EntityArchive archive = EntityArchive.open(new File("data.zip"));
+ * EntityMap&lt;Book&gt; books = EntityMap.instance(Book.class, archive, "books/*.properties");
+ * </pre>
+ *
+ * The archive's central directory is read once when it is opened, and keys
+ * are listed from it rather than from the file system. Child maps, lists
+ * and One fields resolve relative to the entries of their parent entity.
+ * Entities loaded from an archive cannot be saved or deleted.
+ */
+public final class EntityArchive implements Closeable {
+	private static final List<EntityArchive> mounted = new CopyOnWriteArrayList<EntityArchive>();
+
+	private final File file;
+	private final Path root;
+	private final ZipFile zip;
+	private final Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>();
+	// The names of the entries and subdirectories directly within each directory
+	private final Map<String, List<String>> children = new HashMap<String, List<String>>();
+
+	private EntityArchive(File file) throws IOException {
+		this.file = file.getCanonicalFile();
+		root = this.file.toPath();
+		zip = new ZipFile(this.file);
+		Enumeration<? extends ZipEntry> e = zip.entries();
+		while (e.hasMoreElements()) {
+			ZipEntry entry = e.nextElement();
+			String name = entry.getName();
+			if (name.endsWith("/"))
+				addDirectory(name.substring(0, name.length() - 1));
+			else {
+				entries.put(name, entry);
+				addChild(name);
+			}
+		}
+	}
+
+	/** Opens and mounts the archive. */
+	public static EntityArchive open(File file) throws IOException {
+		EntityArchive archive = new EntityArchive(file);
+		for (EntityArchive other : mounted) {
+			if (other.file.equals(archive.file)) {
+				archive.zip.close();
+				throw new IllegalStateException(file + " is already open");
+			}
+		}
+		mounted.add(archive);
+		return archive;
+	}
+
+	/** Returns the canonical path of the archive, under which its entries are mounted. */
+	public File getFile() {
+		return file;
+	}
+
+	/** Unmounts and closes the archive. */
+	@Override
+	public void close() throws IOException {
+		mounted.remove(this);
+		EntityMap.evict(file);
+		zip.close();
+	}
+
+	/** Returns the mounted archive containing the file, or null. */
+	static EntityArchive containing(File file) {
+		if (mounted.isEmpty())
+			return null;
+		Path path = file.getAbsoluteFile().toPath().normalize();
+		for (EntityArchive archive : mounted) {
+			if (path.startsWith(archive.root))
+				return archive;
+		}
+		return null;
+	}
+
+	boolean exists(File file) {
+		String name = entryName(file);
+		return entries.containsKey(name) || children.containsKey(name);
+	}
+
+	boolean isDirectory(File file) {
+		return children.containsKey(entryName(file));
+	}
+
+	byte[] read(File file) throws IOException {
+		ZipEntry entry = entries.get(entryName(file));
+		if (entry == null)
+			throw new FileNotFoundException(file.getPath());
+		try (InputStream in = zip.getInputStream(entry)) {
+			return in.readAllBytes();
+		}
+	}
+
+	/** Returns the names within a directory of the archive. */
+	List<String> list(File directory) {
+		List<String> names = children.get(entryName(directory));
+		return names != null ? names : Collections.<String>emptyList();
+	}
+
+	private String entryName(File file) {
+		Path relative = root.relativize(file.getAbsoluteFile().toPath().normalize());
+		return relative.toString().replace(File.separatorChar, '/');
+	}
+
+	private void addChild(String name) {
+		int slash = name.lastIndexOf('/');
+		String parent = slash < 0 ? "" : name.substring(0, slash);
+		addDirectory(parent);
+		children.get(parent).add(name.substring(slash + 1));
+	}
+
+	private void addDirectory(String name) {
+		if (children.containsKey(name))
+			return;
+		children.put(name, new ArrayList<String>());
+		if (!name.isEmpty())
+			addChild(name);
+	}
+
+	/** The entities of one map within the archive. */
+	static final class Storage implements EntityStorage {
+		private final EntityArchive archive;
+		private final EntityMap<? extends Entity> map;
+		private volatile Set<String> keys;
+
+		Storage(EntityArchive archive, EntityMap<? extends Entity> map) {
+			this.archive = archive;
+			this.map = map;
+		}
+
+		@Override
+		public byte[] read(String key) throws IOException {
+			File file = map.substitute(key);
+			return archive.exists(file) ? archive.read(file) : null;
+		}
+
+		@Override
+		public void write(String key, byte[] data) throws IOException {
+			throw readOnly();
+		}
+
+		@Override
+		public void delete(String key) throws IOException {
+			throw readOnly();
+		}
+
+		@Override
+		public void rename(String oldKey, String newKey) throws IOException {
+			throw readOnly();
+		}
+
+		private IOException readOnly() {
+			return new IOException("Cannot modify " + archive.file + ": archives are read-only");
+		}
+
+		@Override
+		public Set<String> keys() {
+			Set<String> keys = this.keys;
+			if (keys == null) {
+				try {
+					this.keys = keys = Collections.unmodifiableSet(map.scanKeys(archive));
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return keys;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
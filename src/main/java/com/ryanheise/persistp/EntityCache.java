@@ -0,0 +1,727 @@
+package com.ryanheise.persistp;
+
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * The entities cached by an EntityMap, keyed by entity key. Implementations
+ * are created by a {@link CachePolicy} and must be thread-safe.
+ */
+abstract class EntityCache<X extends Entity> {
+	final CacheStats stats = new CacheStats();
+
+	/** Returns the cached entity, recording a hit or miss. */
+	abstract X get(String key);
+
+	/** Returns the cached entity of a numeric key, recording a hit or miss. */
+	X get(long key) {
+		return get(Long.toString(key));
+	}
+
+	/** Returns the cached entity without recording a hit or miss. */
+	abstract X peek(String key);
+
+	abstract void put(String key, X entity);
+
+	abstract X remove(String key);
+
+	abstract void clear();
+
+	/** Returns a snapshot of the cached entities by key. */
+	abstract Map<String, X> entries();
+
+	static final class Soft<X extends Entity> extends EntityCache<X> {
+		private final Map<String, SoftReference<X>> entities = new ConcurrentHashMap<String, SoftReference<X>>();
+
+		@Override
+		X get(String key) {
+			SoftReference<X> ref = entities.get(key);
+			X entity = ref != null ? ref.get() : null;
+			if (entity != null) {
+				stats.hit();
+			}
+			else {
+				stats.miss();
+				// The entity was reclaimed by the garbage collector
+				if (ref != null && entities.remove(key, ref))
+					stats.eviction();
+			}
+			return entity;
+		}
+
+		@Override
+		X peek(String key) {
+			SoftReference<X> ref = entities.get(key);
+			return ref != null ? ref.get() : null;
+		}
+
+		@Override
+		void put(String key, X entity) {
+			entities.put(key, new SoftReference<X>(entity));
+		}
+
+		@Override
+		X remove(String key) {
+			SoftReference<X> ref = entities.remove(key);
+			return ref != null ? ref.get() : null;
+		}
+
+		@Override
+		void clear() {
+			entities.clear();
+		}
+
+		@Override
+		Map<String, X> entries() {
+			Map<String, X> entries = new HashMap<String, X>();
+			for (Map.Entry<String, SoftReference<X>> entry : entities.entrySet()) {
+				X entity = entry.getValue().get();
+				if (entity != null)
+					entries.put(entry.getKey(), entity);
+			}
+			return entries;
+		}
+	}
+
+	static final class Strong<X extends Entity> extends EntityCache<X> {
+		private final Map<String, X> entities = new ConcurrentHashMap<String, X>();
+
+		@Override
+		X get(String key) {
+			X entity = entities.get(key);
+			if (entity != null)
+				stats.hit();
+			else
+				stats.miss();
+			return entity;
+		}
+
+		@Override
+		X peek(String key) {
+			return entities.get(key);
+		}
+
+		@Override
+		void put(String key, X entity) {
+			entities.put(key, entity);
+		}
+
+		@Override
+		X remove(String key) {
+			return entities.remove(key);
+		}
+
+		@Override
+		void clear() {
+			entities.clear();
+		}
+
+		@Override
+		Map<String, X> entries() {
+			return new HashMap<String, X>(entities);
+		}
+	}
+
+	/**
+	 * A soft cache for maps with int or long keys, which stores the keys as
+	 * primitives so that a cached entity costs only its SoftReference and
+	 * two table slots. A numeric key is looked up by an optimistic read that
+	 * takes the lock only if a write overlapped it, so that hits from many
+	 * threads do not contend on the lock.
+	 */
+	static final class NumericSoft<X extends Entity> extends EntityCache<X> {
+		private final StampedLock lock = new StampedLock();
+		private final LongKeyMap<SoftReference<X>> entities = new LongKeyMap<SoftReference<X>>();
+
+		@Override
+		X get(String key) {
+			if (LongKeyMap.isCanonical(key))
+				return get(Long.parseLong(key));
+			SoftReference<X> ref = peekRef(key);
+			X entity = found(ref);
+			// The entity was reclaimed by the garbage collector
+			if (entity == null && ref != null && removeRef(key, ref))
+				stats.eviction();
+			return entity;
+		}
+
+		@Override
+		X get(long key) {
+			SoftReference<X> ref = read(lock, entities, key);
+			X entity = found(ref);
+			if (entity == null && ref != null && removeRef(Long.toString(key), ref))
+				stats.eviction();
+			return entity;
+		}
+
+		private X found(SoftReference<X> ref) {
+			X entity = ref != null ? ref.get() : null;
+			if (entity != null)
+				stats.hit();
+			else
+				stats.miss();
+			return entity;
+		}
+
+		private SoftReference<X> peekRef(String key) {
+			return read(lock, entities, key);
+		}
+
+		private boolean removeRef(String key, SoftReference<X> ref) {
+			long stamp = lock.writeLock();
+			try {
+				if (entities.get(key) != ref)
+					return false;
+				entities.remove(key);
+				return true;
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		@Override
+		X peek(String key) {
+			SoftReference<X> ref = peekRef(key);
+			return ref != null ? ref.get() : null;
+		}
+
+		@Override
+		void put(String key, X entity) {
+			SoftReference<X> ref = new SoftReference<X>(entity);
+			long stamp = lock.writeLock();
+			try {
+				entities.put(key, ref);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		@Override
+		X remove(String key) {
+			SoftReference<X> ref;
+			long stamp = lock.writeLock();
+			try {
+				ref = entities.remove(key);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+			return ref != null ? ref.get() : null;
+		}
+
+		@Override
+		void clear() {
+			long stamp = lock.writeLock();
+			try {
+				entities.clear();
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		@Override
+		Map<String, X> entries() {
+			Map<String, X> entries = new HashMap<String, X>();
+			long stamp = lock.readLock();
+			try {
+				entities.forEach((key, ref) -> {
+					X entity = ref.get();
+					if (entity != null)
+						entries.put(key, entity);
+				});
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * A strong cache for maps with int or long keys, which stores the keys as
+	 * primitives and reads them optimistically like {@link NumericSoft}.
+	 */
+	static final class NumericStrong<X extends Entity> extends EntityCache<X> {
+		private final StampedLock lock = new StampedLock();
+		private final LongKeyMap<X> entities = new LongKeyMap<X>();
+
+		@Override
+		X get(String key) {
+			return found(peek(key));
+		}
+
+		@Override
+		X get(long key) {
+			return found(read(lock, entities, key));
+		}
+
+		private X found(X entity) {
+			if (entity != null)
+				stats.hit();
+			else
+				stats.miss();
+			return entity;
+		}
+
+		@Override
+		X peek(String key) {
+			return read(lock, entities, key);
+		}
+
+		@Override
+		void put(String key, X entity) {
+			long stamp = lock.writeLock();
+			try {
+				entities.put(key, entity);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		@Override
+		X remove(String key) {
+			long stamp = lock.writeLock();
+			try {
+				return entities.remove(key);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		@Override
+		void clear() {
+			long stamp = lock.writeLock();
+			try {
+				entities.clear();
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		@Override
+		Map<String, X> entries() {
+			Map<String, X> entries = new HashMap<String, X>();
+			long stamp = lock.readLock();
+			try {
+				entities.forEach(entries::put);
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * Returns the value of a numeric key in a map guarded by the lock,
+	 * reading it optimistically and taking the read lock only if a write
+	 * overlapped the read.
+	 */
+	static <V> V read(StampedLock lock, LongKeyMap<V> map, long key) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			V value = map.getOptimistic(key);
+			if (lock.validate(stamp))
+				return value;
+		}
+		stamp = lock.readLock();
+		try {
+			return map.get(key);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns the value of a key in a map guarded by the lock, reading a
+	 * canonical numeric key optimistically. Other keys are kept in a HashMap,
+	 * which cannot be read during a write, so are read under the read lock.
+	 */
+	static <V> V read(StampedLock lock, LongKeyMap<V> map, String key) {
+		if (LongKeyMap.isCanonical(key))
+			return read(lock, map, Long.parseLong(key));
+		long stamp = lock.readLock();
+		try {
+			return map.get(key);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	static final class None<X extends Entity> extends EntityCache<X> {
+		@Override
+		X get(String key) {
+			stats.miss();
+			return null;
+		}
+
+		@Override
+		X peek(String key) {
+			return null;
+		}
+
+		@Override
+		void put(String key, X entity) {
+		}
+
+		@Override
+		X remove(String key) {
+			return null;
+		}
+
+		@Override
+		void clear() {
+		}
+
+		@Override
+		Map<String, X> entries() {
+			return Collections.emptyMap();
+		}
+	}
+
+	static final class Lru<X extends Entity> extends EntityCache<X> {
+		private final long maximumWeight;
+		private final ToLongFunction<? super Entity> weigher;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final LinkedHashMap<String, X> entities = new LinkedHashMap<String, X>(16, 0.75f, true);
+		private final Map<String, Long> weights = new HashMap<String, Long>();
+		private long weight;
+
+		Lru(long maximumWeight, ToLongFunction<? super Entity> weigher) {
+			this.maximumWeight = maximumWeight;
+			this.weigher = weigher;
+		}
+
+		@Override
+		X get(String key) {
+			lock.lock();
+			try {
+				X entity = entities.get(key);
+				if (entity != null)
+					stats.hit();
+				else
+					stats.miss();
+				return entity;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		X peek(String key) {
+			lock.lock();
+			try {
+				return entities.get(key);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		void put(String key, X entity) {
+			long entityWeight = weigher.applyAsLong(entity);
+			lock.lock();
+			try {
+				removeLocked(key);
+				entities.put(key, entity);
+				weights.put(key, entityWeight);
+				weight += entityWeight;
+				// Evict the least recently used, but always keep the newest entity
+				for (Iterator<String> i = entities.keySet().iterator(); weight > maximumWeight && entities.size() > 1;) {
+					String eldest = i.next();
+					i.remove();
+					weight -= weights.remove(eldest);
+					stats.eviction();
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		X remove(String key) {
+			lock.lock();
+			try {
+				return removeLocked(key);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private X removeLocked(String key) {
+			X entity = entities.remove(key);
+			if (entity != null)
+				weight -= weights.remove(key);
+			return entity;
+		}
+
+		@Override
+		void clear() {
+			lock.lock();
+			try {
+				entities.clear();
+				weights.clear();
+				weight = 0;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		Map<String, X> entries() {
+			lock.lock();
+			try {
+				return new HashMap<String, X>(entities);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Window TinyLFU: new entities enter a small LRU window. An entity leaving
+	 * the window is admitted to the main segmented LRU only if a frequency
+	 * sketch estimates it is used more often than the main segment's victim.
+	 */
+	static final class TinyLfu<X extends Entity> extends EntityCache<X> {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final FrequencySketch sketch;
+		private final int windowCapacity;
+		private final int protectedCapacity;
+		private final int mainCapacity;
+		private final LinkedHashMap<String, X> window = new LinkedHashMap<String, X>(16, 0.75f, true);
+		private final LinkedHashMap<String, X> probation = new LinkedHashMap<String, X>(16, 0.75f, true);
+		private final LinkedHashMap<String, X> protectedSegment = new LinkedHashMap<String, X>(16, 0.75f, true);
+
+		TinyLfu(int maximumSize) {
+			windowCapacity = Math.max(1, maximumSize / 100);
+			mainCapacity = Math.max(0, maximumSize - windowCapacity);
+			protectedCapacity = (int)(mainCapacity * 0.8);
+			sketch = new FrequencySketch(maximumSize);
+		}
+
+		@Override
+		X get(String key) {
+			lock.lock();
+			try {
+				sketch.increment(key);
+				X entity = access(key);
+				if (entity != null)
+					stats.hit();
+				else
+					stats.miss();
+				return entity;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		X peek(String key) {
+			lock.lock();
+			try {
+				X entity = window.get(key);
+				if (entity == null)
+					entity = probation.get(key);
+				if (entity == null)
+					entity = protectedSegment.get(key);
+				return entity;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private X access(String key) {
+			X entity = window.get(key);
+			if (entity != null)
+				return entity;
+			entity = protectedSegment.get(key);
+			if (entity != null)
+				return entity;
+			entity = probation.remove(key);
+			if (entity != null) {
+				// Promote to the protected segment, demoting its eldest if full
+				protectedSegment.put(key, entity);
+				if (protectedSegment.size() > protectedCapacity) {
+					Iterator<Map.Entry<String, X>> i = protectedSegment.entrySet().iterator();
+					Map.Entry<String, X> eldest = i.next();
+					i.remove();
+					probation.put(eldest.getKey(), eldest.getValue());
+				}
+			}
+			return entity;
+		}
+
+		@Override
+		void put(String key, X entity) {
+			lock.lock();
+			try {
+				// The frequency is counted by get, which precedes the put of a
+				// load, so that a newly loaded key is not counted twice
+				if (window.containsKey(key)) {
+					window.put(key, entity);
+					return;
+				}
+				if (protectedSegment.containsKey(key)) {
+					protectedSegment.put(key, entity);
+					return;
+				}
+				if (probation.containsKey(key)) {
+					probation.put(key, entity);
+					return;
+				}
+				window.put(key, entity);
+				if (window.size() <= windowCapacity)
+					return;
+				Iterator<Map.Entry<String, X>> i = window.entrySet().iterator();
+				Map.Entry<String, X> candidate = i.next();
+				i.remove();
+				if (probation.size() + protectedSegment.size() < mainCapacity) {
+					probation.put(candidate.getKey(), candidate.getValue());
+					return;
+				}
+				LinkedHashMap<String, X> victimSegment = !probation.isEmpty() ? probation : protectedSegment;
+				if (victimSegment.isEmpty()) {
+					stats.eviction();
+					return;
+				}
+				Iterator<Map.Entry<String, X>> j = victimSegment.entrySet().iterator();
+				Map.Entry<String, X> victim = j.next();
+				if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+					j.remove();
+					probation.put(candidate.getKey(), candidate.getValue());
+				}
+				stats.eviction();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		X remove(String key) {
+			lock.lock();
+			try {
+				X entity = window.remove(key);
+				if (entity == null)
+					entity = probation.remove(key);
+				if (entity == null)
+					entity = protectedSegment.remove(key);
+				return entity;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		void clear() {
+			lock.lock();
+			try {
+				window.clear();
+				probation.clear();
+				protectedSegment.clear();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		Map<String, X> entries() {
+			lock.lock();
+			try {
+				Map<String, X> entries = new HashMap<String, X>(window);
+				entries.putAll(probation);
+				entries.putAll(protectedSegment);
+				return entries;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A count-min sketch of 4 rows of small counters. All counters are halved
+	 * after a sample of increments so that the estimate favours recent use.
+	 */
+	static final class FrequencySketch {
+		private static final int MAX_COUNT = 15;
+		private final int[][] table;
+		private final int[] seeds;
+		private final int mask;
+		private final int sampleSize;
+		private int size;
+
+		FrequencySketch(int maximumSize) {
+			int width = Integer.highestOneBit(Math.max(16, maximumSize) - 1) << 1;
+			table = new int[4][width];
+			mask = width - 1;
+			sampleSize = 10 * Math.max(16, maximumSize);
+			seeds = new int[4];
+			for (int i = 0; i < seeds.length; i++)
+				seeds[i] = ThreadLocalRandom.current().nextInt() | 1;
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ seeds[row]) * seeds[row];
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			boolean added = false;
+			for (int row = 0; row < table.length; row++) {
+				int i = index(hash, row);
+				if (table[row][i] < MAX_COUNT) {
+					table[row][i]++;
+					added = true;
+				}
+			}
+			if (added && ++size >= sampleSize)
+				age();
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int frequency = Integer.MAX_VALUE;
+			for (int row = 0; row < table.length; row++)
+				frequency = Math.min(frequency, table[row][index(hash, row)]);
+			return frequency;
+		}
+
+		private void age() {
+			for (int[] row : table) {
+				for (int i = 0; i < row.length; i++)
+					row[i] >>>= 1;
+			}
+			size /= 2;
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package com.ryanheise.persistp;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Loads and saves the @Prop fields of one Entity subclass. Subclasses are
+ * generated at compile time by the PersistP annotation processor and named
+ * after the entity class with a "_Codec" suffix (e.g. Book_Codec for Book).
+ * When no codec is present, Entity falls back to reflection.
+ */
+public abstract class EntityCodec<X extends Entity> {
+	private static final ThreadLocal<Map<String, SimpleDateFormat>> dateFormats = ThreadLocal.withInitial(HashMap::new);
+
+	static <X extends Entity> EntityCodec<X> find(Class<X> entityClass) {
+		String name = entityClass.getName();
+		int packageEnd = name.lastIndexOf('.') + 1;
+		String codecName = name.substring(0, packageEnd) + name.substring(packageEnd).replace('$', '_') + "_Codec";
+		try {
+			Class<?> codecClass = Class.forName(codecName, true, entityClass.getClassLoader());
+			return (EntityCodec<X>)codecClass.getDeclaredConstructor().newInstance();
+		}
+		catch (ClassNotFoundException e) {
+			return null;
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot instantiate " + codecName, e);
+		}
+	}
+
+	protected abstract void load(X entity) throws IOException;
+
+	protected abstract void save(X entity) throws IOException;
+
+	protected abstract String getKey(X entity);
+
+	protected abstract void setKey(X entity, String key) throws IOException;
+
+	protected static String getProperty(Entity entity, String key, String initial) {
+		String s = entity.getProperty(key);
+		// If the property is not present, use the initial value as the default
+		return s != null ? s : initial;
+	}
+
+	protected static void setProperty(Entity entity, String key, String value) {
+		if (value != null)
+			entity.setProperty(key, value);
+		else
+			entity.removeProperty(key);
+	}
+
+	protected static String toStringOrNull(Object value) {
+		return value != null ? String.valueOf(value) : null;
+	}
+
+	protected static String parseString(String s) {
+		return s != null ? s : "";
+	}
+
+	protected static int parseInt(String s, int def) {
+		try {
+			return Integer.parseInt(s);
+		}
+		catch (Exception e) {
+			return def;
+		}
+	}
+
+	protected static long parseLong(String s, long def) {
+		try {
+			return Long.parseLong(s);
+		}
+		catch (Exception e) {
+			return def;
+		}
+	}
+
+	protected static double parseDouble(String s, double def) {
+		try {
+			return Double.parseDouble(s);
+		}
+		catch (Exception e) {
+			return def;
+		}
+	}
+
+	protected static boolean parseBoolean(String s) {
+		return Boolean.parseBoolean(s != null ? s : "false");
+	}
+
+	protected static Integer parseInteger(String s) {
+		return (s == null || s.isEmpty()) ? null : Integer.valueOf(parseInt(s, 0));
+	}
+
+	protected static Long parseLongObject(String s) {
+		return (s == null || s.isEmpty()) ? null : Long.valueOf(parseLong(s, 0L));
+	}
+
+	protected static Double parseDoubleObject(String s) {
+		return (s == null || s.isEmpty()) ? null : Double.valueOf(parseDouble(s, 0.0));
+	}
+
+	protected static Boolean parseBooleanObject(String s) {
+		return (s == null || s.isEmpty()) ? null : Boolean.valueOf(s);
+	}
+
+	private static SimpleDateFormat dateFormat(String pattern) {
+		Map<String, SimpleDateFormat> formats = dateFormats.get();
+		SimpleDateFormat df = formats.get(pattern);
+		if (df == null) {
+			df = new SimpleDateFormat(pattern);
+			formats.put(pattern, df);
+		}
+		return df;
+	}
+
+	protected static Date parseDate(String s, String pattern) throws IOException {
+		SimpleDateFormat df = dateFormat(pattern);
+		try {
+			return df.parse(s != null ? s : df.format(new Date()));
+		}
+		catch (ParseException e) {
+			throw new IOException(e);
+		}
+	}
+
+	protected static String formatDate(Date date, String pattern) {
+		return dateFormat(pattern).format(date);
+	}
+
+	static List<String> splitKeys(String s) {
+		// Splits on commas followed by any spaces, dropping trailing empty keys like String.split
+		List<String> keys = new ArrayList<String>();
+		String keysStr = (s != null ? s : "").trim();
+		int start = 0;
+		int nonEmpty = 0;
+		while (start < keysStr.length()) {
+			int comma = keysStr.indexOf(',', start);
+			int end = comma >= 0 ? comma : keysStr.length();
+			keys.add(keysStr.substring(start, end));
+			if (end > start)
+				nonEmpty = keys.size();
+			if (comma < 0)
+				break;
+			start = comma + 1;
+			while (start < keysStr.length() && keysStr.charAt(start) == ' ')
+				start++;
+		}
+		return keys.subList(0, nonEmpty);
+	}
+
+	protected static void setKeys(List<? extends Entity> list, String s) {
+		((EntityList<? extends Entity>)list).setKeys(splitKeys(s));
+	}
+
+	protected static void setStrings(List<String> list, String s) {
+		list.clear();
+		list.addAll(splitKeys(s));
+	}
+
+	protected static void setIntegers(List<Integer> list, String s) throws IOException {
+		list.clear();
+		for (int value : parseInts(s))
+			list.add(value);
+	}
+
+	/**
+	 * Parses a comma separated list of ints in a single pass without
+	 * allocating per element. A null or blank string is an empty array.
+	 */
+	protected static int[] parseInts(String s) throws IOException {
+		s = trimList(s);
+		int[] values = new int[count(s)];
+		for (int i = 0, start = 0; i < values.length; i++) {
+			int end = end(s, start);
+			values[i] = (int)parseLong(s, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+			start = end + 1;
+		}
+		return values;
+	}
+
+	protected static long[] parseLongs(String s) throws IOException {
+		s = trimList(s);
+		long[] values = new long[count(s)];
+		for (int i = 0, start = 0; i < values.length; i++) {
+			int end = end(s, start);
+			values[i] = parseLong(s, start, end, Long.MIN_VALUE, Long.MAX_VALUE);
+			start = end + 1;
+		}
+		return values;
+	}
+
+	protected static double[] parseDoubles(String s) throws IOException {
+		s = trimList(s);
+		double[] values = new double[count(s)];
+		for (int i = 0, start = 0; i < values.length; i++) {
+			int end = end(s, start);
+			try {
+				// The JDK has no parser for a region of a string, so this allocates a substring
+				values[i] = Double.parseDouble(s.substring(start, end));
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Malformed number list: " + s);
+			}
+			start = end + 1;
+		}
+		return values;
+	}
+
+	/** Drops the trailing empty elements of a comma separated list, as String.split does. */
+	private static String trimList(String s) {
+		if (s == null)
+			return null;
+		int end = s.length();
+		while (end > 0 && (s.charAt(end - 1) == ',' || Character.isWhitespace(s.charAt(end - 1))))
+			end--;
+		return s.substring(0, end);
+	}
+
+	/** Returns the number of elements in a comma separated list. */
+	private static int count(String s) {
+		if (s == null || s.trim().isEmpty())
+			return 0;
+		int count = 1;
+		for (int i = s.indexOf(','); i >= 0; i = s.indexOf(',', i + 1))
+			count++;
+		return count;
+	}
+
+	private static int end(String s, int start) {
+		int comma = s.indexOf(',', start);
+		return comma >= 0 ? comma : s.length();
+	}
+
+	private static long parseLong(String s, int start, int end, long min, long max) throws IOException {
+		while (start < end && Character.isWhitespace(s.charAt(start)))
+			start++;
+		while (end > start && Character.isWhitespace(s.charAt(end - 1)))
+			end--;
+		boolean negative = start < end && s.charAt(start) == '-';
+		if (start < end && (negative || s.charAt(start) == '+'))
+			start++;
+		if (start == end)
+			throw new IOException("Malformed number list: " + s);
+		// Accumulated negatively, as Long.parseLong does, so that min can be represented
+		long limit = negative ? min : -max;
+		long result = 0;
+		for (int i = start; i < end; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || result < limit / 10)
+				throw new IOException("Malformed number list: " + s);
+			result *= 10;
+			if (result < limit + digit)
+				throw new IOException("Malformed number list: " + s);
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	protected static String joinKeys(List<? extends Entity> list) {
+		// An EntityList knows its keys without resolving its elements
+		if (list instanceof EntityList)
+			return String.join(",", ((EntityList<? extends Entity>)list).getKeys());
+		return String.join(",", list.stream().map(Entity::getKeyFieldValue).collect(Collectors.toList()));
+	}
+
+	protected static String join(List<?> list) {
+		return String.join(",", list.stream().map(String::valueOf).collect(Collectors.toList()));
+	}
+
+	protected static String join(int[] values) {
+		if (values == null)
+			return null;
+		StringBuilder sb = new StringBuilder(values.length * 8);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	protected static String join(long[] values) {
+		if (values == null)
+			return null;
+		StringBuilder sb = new StringBuilder(values.length * 8);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	protected static String join(double[] values) {
+		if (values == null)
+			return null;
+		StringBuilder sb = new StringBuilder(values.length * 8);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+}
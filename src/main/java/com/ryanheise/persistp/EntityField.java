@@ -0,0 +1,187 @@
+package com.ryanheise.persistp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent field of an Entity subclass with its annotations resolved
+ * and method handles for fast access.
+ */
+final class EntityField {
+	final Field field;
+	final String name;
+	final Class<?> type;
+	final Class<?> elementType;
+	final String propName;
+	final String initial;
+	final String temporal;
+	final String pattern;
+	final boolean key;
+	final boolean backRef;
+	final boolean indexed;
+	/** Converts a @Prop or @Key field to and from its property string, or null for other fields. */
+	final FieldCodec codec;
+	private final MethodHandle getter;
+	// Typed as the field so that primitives are read without boxing, or null for reference fields
+	private final MethodHandle primitiveGetter;
+	private final MethodHandle setter;
+
+	EntityField(Field field) {
+		this.field = field;
+		field.setAccessible(true);
+		name = field.getName();
+		type = field.getType();
+		Prop prop = field.getAnnotation(Prop.class);
+		if (prop != null) {
+			String propName = prop.name();
+			if (propName.isEmpty()) {
+				propName = prop.value();
+				if (propName.isEmpty())
+					propName = name;
+			}
+			this.propName = propName;
+			initial = prop.initial().isEmpty() ? null : prop.initial();
+		}
+		else {
+			propName = null;
+			initial = null;
+		}
+		Temporal temporal = field.getAnnotation(Temporal.class);
+		this.temporal = temporal != null ? temporal.value() : null;
+		FPattern fPattern = field.getAnnotation(FPattern.class);
+		pattern = fPattern != null ? fPattern.value() : null;
+		key = field.getAnnotation(Key.class) != null;
+		backRef = field.getAnnotation(BackRef.class) != null;
+		indexed = field.getAnnotation(Indexed.class) != null;
+		elementType = elementType(field);
+		try {
+			// Field is accessible, so the lookup performs no access checks
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle rawGetter = lookup.unreflectGetter(field);
+			getter = rawGetter.asType(MethodType.methodType(Object.class, Entity.class));
+			primitiveGetter = type.isPrimitive() ? rawGetter.asType(MethodType.methodType(type, Entity.class)) : null;
+			setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Entity.class, type));
+		}
+		catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		codec = isProp() || key ? FieldCodec.of(this) : null;
+	}
+
+	private static Class<?> elementType(Field field) {
+		Class<?> type = field.getType();
+		if (type != List.class && type != Map.class && type != One.class)
+			return null;
+		if (!(field.getGenericType() instanceof ParameterizedType))
+			return null;
+		ParameterizedType pType = (ParameterizedType)field.getGenericType();
+		return (Class<?>)pType.getActualTypeArguments()[type == Map.class ? 1 : 0];
+	}
+
+	boolean isProp() {
+		return propName != null;
+	}
+
+	Object get(Entity entity) {
+		try {
+			return getter.invokeExact(entity);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	int getInt(Entity entity) {
+		try {
+			return (int)primitiveGetter.invokeExact(entity);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	long getLong(Entity entity) {
+		try {
+			return (long)primitiveGetter.invokeExact(entity);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	double getDouble(Entity entity) {
+		try {
+			return (double)primitiveGetter.invokeExact(entity);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	boolean getBoolean(Entity entity) {
+		try {
+			return (boolean)primitiveGetter.invokeExact(entity);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	void set(Entity entity, Object value) {
+		try {
+			setter.invoke(entity, value);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	void setInt(Entity entity, int value) {
+		try {
+			setter.invokeExact(entity, value);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	void setLong(Entity entity, long value) {
+		try {
+			setter.invokeExact(entity, value);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	void setDouble(Entity entity, double value) {
+		try {
+			setter.invokeExact(entity, value);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	void setBoolean(Entity entity, boolean value) {
+		try {
+			setter.invokeExact(entity, value);
+		}
+		catch (Throwable e) {
+			throw rethrow(e);
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable e) {
+		if (e instanceof RuntimeException)
+			return (RuntimeException)e;
+		if (e instanceof Error)
+			throw (Error)e;
+		return new RuntimeException(e);
+	}
+}
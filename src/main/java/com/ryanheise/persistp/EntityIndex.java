@@ -0,0 +1,445 @@
+package com.ryanheise.persistp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.FileTime;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An index of the values of one @Indexed field over the entities of an
+ * EntityMap. The index is built on first use from the index file in the
+ * entity directory, re-reading only those entity files whose modification
+ * time differs from the time recorded in the index. Saves and deletes
+ * through the map update the index in memory, and the next lookup after a
+ * change appends the changed entries to the index file. The file is
+ * rewritten once it holds more superseded records than live ones.
+ */
+final class EntityIndex {
+	static final String FILE_PREFIX = ".persistp-";
+	private static final String FILE_SUFFIX = ".idx";
+	private static final int MAGIC = 0x70706979;
+	private static final int PUT = 1;
+	private static final int REMOVE = 2;
+
+	private final EntityMap<? extends Entity> map;
+	private final EntityStorage storage;
+	// The storage if the entities are in files, whose modification times are
+	// recorded and whose directory holds the index file, or null. An index
+	// over another storage cannot be checked against file times, so it is
+	// only kept in memory.
+	private final FileStorage files;
+	private final EntityField field;
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+	private final TreeMap<Comparable<Object>, Set<String>> keysByValue = new TreeMap<Comparable<Object>, Set<String>>();
+	// The key set that the entries were last checked against
+	private Set<String> validatedKeys;
+	// Whether the recorded modification times must be checked against the
+	// entity files, which is needed once the index file has been read
+	private boolean checkTimes = true;
+	private final Set<String> staleKeys = new HashSet<String>();
+	// The keys whose entries have changed since the index file was written
+	private final Set<String> unwritten = new HashSet<String>();
+	// The number of records in the index file
+	private int records;
+	// Whether the index file must be rewritten rather than appended to
+	private boolean rewrite;
+	private boolean loaded;
+
+	private static final class Entry {
+		final String raw;
+		final Comparable<Object> value;
+		long modified;
+
+		Entry(String raw, Comparable<Object> value, long modified) {
+			this.raw = raw;
+			this.value = value;
+			this.modified = modified;
+		}
+	}
+
+	EntityIndex(EntityMap<? extends Entity> map, EntityField field) {
+		this.map = map;
+		this.field = field;
+		storage = map.storage();
+		files = storage instanceof FileStorage ? (FileStorage)storage : null;
+	}
+
+	static boolean isIndexable(Class<?> type) {
+		return type == Integer.TYPE || type == Long.TYPE || type == Double.TYPE || type == Boolean.TYPE
+				|| type == Integer.class || type == Long.class || type == Double.class || type == Boolean.class
+				|| type == String.class || type == Date.class;
+	}
+
+	/**
+	 * Deletes the index files, and temporary files left by an interrupted
+	 * write, in an entity directory if they are all that remains in it, and
+	 * returns whether the directory is now empty.
+	 */
+	static boolean deleteOrphanedFiles(File directory) throws IOException {
+		String[] names = directory.list();
+		if (names == null)
+			return false;
+		for (String name : names) {
+			if (!name.startsWith(FILE_PREFIX))
+				return false;
+		}
+		for (String name : names) {
+			if (!new File(directory, name).delete())
+				throw new IOException("Failed to delete " + new File(directory, name));
+		}
+		return true;
+	}
+
+	/** Returns the keys of the entities whose value is between from and to inclusive, in value order. */
+	List<String> find(Object from, Object to) throws IOException {
+		Set<String> keys = map.keys();
+		synchronized (this) {
+			validate(keys);
+			NavigableMap<Comparable<Object>, Set<String>> range = keysByValue;
+			if (from != null)
+				range = range.tailMap(normalize(from), true);
+			if (to != null)
+				range = range.headMap(normalize(to), true);
+			List<String> result = new ArrayList<String>();
+			for (Set<String> valueKeys : range.values())
+				result.addAll(valueKeys);
+			return result;
+		}
+	}
+
+	/** Records the saved properties of an entity. */
+	synchronized void put(String key, Map<String, String> props) throws IOException {
+		if (!loaded)
+			return;
+		String raw = props.get(field.propName);
+		Entry entry = entries.get(key);
+		if (entry != null && equal(entry.raw, raw))
+			return;
+		// The modification time is recorded once the file is written
+		put(key, raw, -1);
+	}
+
+	synchronized void written(String key, long lastModified) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.modified != lastModified) {
+			entry.modified = lastModified;
+			unwritten.add(key);
+		}
+	}
+
+	synchronized void remove(String key) {
+		removeEntry(key);
+	}
+
+	/** Marks an entity as changed outside of the map so that its file is re-read. */
+	synchronized void invalidate(String key) {
+		staleKeys.add(key);
+	}
+
+	synchronized void invalidateAll() {
+		validatedKeys = null;
+		checkTimes = true;
+	}
+
+	private void validate(Set<String> keys) throws IOException {
+		if (!loaded) {
+			readFile();
+			loaded = true;
+		}
+		// A rescan of the directory gives a new key set, against which only
+		// the added and removed keys need to be checked. Entity files changed
+		// in place are found by their modification times only after the index
+		// file has been read or after an overflow of watch events.
+		if (keys != validatedKeys || checkTimes) {
+			for (String key : entries.keySet()) {
+				if (!keys.contains(key))
+					staleKeys.add(key);
+			}
+			for (String key : keys) {
+				Entry entry = entries.get(key);
+				if (entry == null || (checkTimes && entry.modified != lastModified(key)))
+					staleKeys.add(key);
+			}
+			validatedKeys = keys;
+			checkTimes = false;
+		}
+		if (!staleKeys.isEmpty()) {
+			for (String key : staleKeys) {
+				if (keys.contains(key))
+					reread(key);
+				else
+					removeEntry(key);
+			}
+			staleKeys.clear();
+		}
+		if (rewrite || !unwritten.isEmpty())
+			writeFile();
+	}
+
+	private void reread(String key) throws IOException {
+		File file = map.substitute(key);
+		// The modification time is read first so that a concurrent change is
+		// picked up by the next validation
+		long lastModified = lastModified(key);
+		byte[] data = storage.read(key);
+		if (data == null) {
+			removeEntry(key);
+			return;
+		}
+		// Data not yet written to its file has no modification time
+		if (files != null && files.isPending(key))
+			lastModified = -1;
+		String raw;
+		if (file.getName().endsWith(".bin"))
+			raw = readBinary(data);
+		else if (file.getName().endsWith(".xml")) {
+			Properties props = new Properties();
+			try (InputStream in = new ByteArrayInputStream(data)) {
+				props.loadFromXML(in);
+			}
+			raw = props.getProperty(field.propName);
+		}
+		else
+			raw = readProperties(data);
+		put(key, raw, lastModified);
+	}
+
+	// Reads the value of the indexed field from a .properties entity
+	private String readProperties(byte[] data) throws IOException {
+		String[] raw = new String[1];
+		try {
+			PropertiesCodec.read(ByteBuffer.wrap(data), (name, value) -> {
+				if (name.equals(field.propName))
+					raw[0] = value;
+			});
+		}
+		catch (ParseException e) {
+			throw new IOException(e);
+		}
+		return raw[0];
+	}
+
+	// Reads the value of the indexed field from a .bin entity
+	private String readBinary(byte[] data) throws IOException {
+		try {
+			BinaryFormat.Reader reader = new BinaryFormat.Reader(ByteBuffer.wrap(data));
+			while (reader.next()) {
+				if (reader.name().equals(field.propName))
+					return reader.valueAsString(field);
+				reader.skipValue();
+			}
+			return null;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Truncated .bin entity", e);
+		}
+	}
+
+	private void put(String key, String raw, long lastModified) throws IOException {
+		removeEntry(key);
+		Comparable<Object> value = raw != null ? parse(raw) : null;
+		entries.put(key, new Entry(raw, value, lastModified));
+		unwritten.add(key);
+		if (value != null) {
+			Set<String> keys = keysByValue.get(value);
+			if (keys == null)
+				keysByValue.put(value, keys = new TreeSet<String>());
+			keys.add(key);
+		}
+	}
+
+	private Entry removeEntry(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			unwritten.add(key);
+		if (entry != null && entry.value != null) {
+			Set<String> keys = keysByValue.get(entry.value);
+			keys.remove(key);
+			if (keys.isEmpty())
+				keysByValue.remove(entry.value);
+		}
+		return entry;
+	}
+
+	private Comparable<Object> parse(String raw) throws IOException {
+		Class<?> type = field.type;
+		Object value;
+		try {
+			if (type == Integer.TYPE || type == Integer.class || type == Long.TYPE || type == Long.class)
+				value = Long.valueOf(raw.trim());
+			else if (type == Double.TYPE || type == Double.class)
+				value = Double.valueOf(raw.trim());
+			else if (type == Boolean.TYPE || type == Boolean.class)
+				value = Boolean.valueOf(raw.trim());
+			else if (type == Date.class)
+				value = EntityCodec.parseDate(raw, temporal());
+			else
+				value = raw;
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid value for " + field.name + ": " + raw, e);
+		}
+		return (Comparable<Object>)value;
+	}
+
+	// Converts a lookup value to the type of the indexed values
+	private Comparable<Object> normalize(Object value) throws IOException {
+		Class<?> type = field.type;
+		if (value instanceof String && type != String.class)
+			return parse((String)value);
+		if (value instanceof Number) {
+			if (type == Double.TYPE || type == Double.class)
+				return (Comparable<Object>)(Object)((Number)value).doubleValue();
+			return (Comparable<Object>)(Object)((Number)value).longValue();
+		}
+		if (value instanceof Comparable)
+			return (Comparable<Object>)value;
+		throw new IllegalArgumentException("Cannot look up " + field.name + " by " + value);
+	}
+
+	private String temporal() throws IOException {
+		if (field.temporal == null)
+			throw new IOException("Date field " + field.name + " requires @Temporal annotation");
+		return field.temporal;
+	}
+
+	private File file() throws IOException {
+		return new File(map.getStarFile().getParentFile(), FILE_PREFIX + field.propName + FILE_SUFFIX);
+	}
+
+	// The index file is a sequence of records, each of which puts or
+	// removes the entry of a key. Later records supersede earlier ones.
+	private void readFile() throws IOException {
+		File file = file();
+		rewrite = true;
+		if (files == null || !file.exists())
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				return;
+			int type;
+			while ((type = in.read()) >= 0) {
+				String key = in.readUTF();
+				if (type == PUT) {
+					long lastModified = in.readLong();
+					String raw = in.readBoolean() ? in.readUTF() : null;
+					put(key, raw, lastModified);
+				}
+				else if (type == REMOVE)
+					removeEntry(key);
+				else
+					throw new EOFException();
+				records++;
+			}
+			rewrite = false;
+		}
+		catch (EOFException e) {
+			// A record torn by a crash is dropped and the file is rewritten.
+			// The entries read before it are checked against the entity files.
+		}
+		finally {
+			unwritten.clear();
+		}
+	}
+
+	private void writeFile() throws IOException {
+		File file = file();
+		File directory = file.getParentFile();
+		if (files == null || !directory.isDirectory()) {
+			// Written in full once there is a directory for it
+			rewrite = true;
+			unwritten.clear();
+			return;
+		}
+		if (rewrite || records + unwritten.size() > 2 * entries.size() + 64 || !file.exists()) {
+			// The temporary file and rename change the star directory, which
+			// must not be mistaken for a change to its entity files
+			FileTime before = files.directoryModified();
+			rewriteFile(file);
+			files.directoryChanged(before);
+		}
+		else {
+			appendFile(file);
+		}
+		unwritten.clear();
+	}
+
+	// Appends the changed entries to the index file
+	private void appendFile(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+			for (String key : unwritten)
+				writeRecord(out, key, entries.get(key));
+		}
+		catch (IOException e) {
+			// The file may end in a partial record
+			rewrite = true;
+			throw e;
+		}
+		records += unwritten.size();
+	}
+
+	private void rewriteFile(File file) throws IOException {
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+				writeRecord(out, e.getKey(), e.getValue());
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Failed to rename " + temp + " to " + file);
+		records = entries.size();
+		rewrite = false;
+	}
+
+	private static void writeRecord(DataOutputStream out, String key, Entry entry) throws IOException {
+		out.writeByte(entry != null ? PUT : REMOVE);
+		out.writeUTF(key);
+		if (entry != null) {
+			out.writeLong(entry.modified);
+			out.writeBoolean(entry.raw != null);
+			if (entry.raw != null)
+				out.writeUTF(entry.raw);
+		}
+	}
+
+	// Entities in a storage have no file times, so they are never stale
+	private long lastModified(String key) throws IOException {
+		return files == null ? -1 : lastModified(map.substitute(key));
+	}
+
+	static long lastModified(File file) throws IOException {
+		try {
+			return Files.getLastModifiedTime(file.toPath()).toMillis();
+		}
+		catch (NoSuchFileException e) {
+			return -1;
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -1,16 +1,27 @@
 package com.ryanheise.persistp;
 
 import java.util.ArrayList;
-import java.lang.ref.SoftReference;
 import java.util.AbstractList;
 import java.io.File;
-import java.lang.reflect.Constructor;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.stream.Collectors;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 
-public class EntityList<X extends Entity> extends ArrayList<X> { //extends AbstractList<X> {
+/**
+ * A list of the entities whose keys are stored in a list property. Only the
+ * keys are kept by the list, and each element is resolved through the
+ * list's EntityMap when it is accessed, so the map's cache policy decides
+ * how long resolved elements stay in memory. An entity added to the list is
+ * held by it until it has been stored under its current key, so that an
+ * element that is given a key after being added is still found and its key
+ * is saved, and the keys of elements follow entities rekeyed in the map.
+ */
+public class EntityList<X extends Entity> extends AbstractList<X> implements RandomAccess {
 	static <X extends Entity> EntityList<X> create(Entity parent, Class<X> entityClass) throws IOException {
 		return new EntityList<X>(parent, entityClass);
 	}
@@ -19,17 +30,23 @@ public class EntityList<X extends Entity> extends ArrayList<X> { //extends Abstr
 	private Class<X> entityClass;
 	private File filePattern;
 	private EntityMap<X> map;
+	private final ArrayList<String> keys = new ArrayList<String>();
+	// The entities added to the list that are held until they are stored
+	// under their current key, or null for the elements known by key alone
+	private final ArrayList<X> added = new ArrayList<X>();
 
 	private EntityList(Entity parent, Class<X> entityClass) throws IOException {
 		this.parent = parent;
 		this.entityClass = entityClass;
 		map = EntityMap.instance(parent, entityClass, filePattern);
+		map.addList(this);
 	}
 
 	// called by parent entity as soon as the file is known
 	void bind(File filePattern) throws IOException {
 		this.filePattern = filePattern;
 		map = EntityMap.instance(parent, entityClass, filePattern);
+		map.addList(this);
 	}
 
 	void rebind(File filePattern) throws IOException {
@@ -40,8 +57,237 @@ public class EntityList<X extends Entity> extends ArrayList<X> { //extends Abstr
 	}
 
 	void setKeys(List<String> keys) {
-		clear();
-		addAll(keys.stream().map(key -> map.get(key)).collect(Collectors.toList()));
+		this.keys.clear();
+		this.keys.addAll(keys);
+		added.clear();
+		added.addAll(Collections.nCopies(keys.size(), null));
+		modCount++;
+	}
+
+	/**
+	 * Returns the keys of the elements, without resolving them. The keys of
+	 * held entities are brought up to date, and the entities stored under
+	 * them are no longer held.
+	 */
+	List<String> getKeys() {
+		for (int i = 0; i < keys.size(); i++) {
+			X entity = added.get(i);
+			if (entity != null) {
+				keys.set(i, entity.getKeyFieldValue());
+				if (entity.isStoredUnderKey())
+					added.set(i, null);
+			}
+		}
+		return Collections.unmodifiableList(keys);
+	}
+
+	@Override
+	public X get(int index) {
+		return get(index, null, 0);
+	}
+
+	// Returns the element at the index, loading the elements after it ahead
+	// through the prefetcher of an iterator if it has one
+	private X get(int index, Prefetcher<X> prefetcher, int window) {
+		X entity = added.get(index);
+		if (entity != null)
+			return entity;
+		if (prefetcher == null)
+			return map.get(keys.get(index));
+		return prefetcher.get(keys, index, window);
+	}
+
+	@Override
+	public Iterator<X> iterator() {
+		return new Itr(0);
+	}
+
+	@Override
+	public ListIterator<X> listIterator(int index) {
+		if (index < 0 || index > size())
+			throw new IndexOutOfBoundsException("Index: " + index);
+		return new Itr(index);
+	}
+
+	// Each iterator has its own prefetcher, as the window follows the
+	// elements read by one caller
+	private final class Itr implements ListIterator<X> {
+		private final int window = map.getPrefetch();
+		private final Prefetcher<X> prefetcher = window > 0 ? new Prefetcher<X>(map) : null;
+		private int cursor;
+		private int lastRet = -1;
+		private int expectedModCount = modCount;
+
+		Itr(int index) {
+			cursor = index;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return cursor < size();
+		}
+
+		@Override
+		public X next() {
+			checkForComodification();
+			if (cursor >= size())
+				throw new NoSuchElementException();
+			X entity = get(cursor, prefetcher, window);
+			lastRet = cursor++;
+			return entity;
+		}
+
+		@Override
+		public boolean hasPrevious() {
+			return cursor > 0;
+		}
+
+		@Override
+		public X previous() {
+			checkForComodification();
+			if (cursor <= 0)
+				throw new NoSuchElementException();
+			X entity = get(cursor - 1);
+			lastRet = --cursor;
+			return entity;
+		}
+
+		@Override
+		public int nextIndex() {
+			return cursor;
+		}
+
+		@Override
+		public int previousIndex() {
+			return cursor - 1;
+		}
+
+		@Override
+		public void remove() {
+			if (lastRet < 0)
+				throw new IllegalStateException();
+			checkForComodification();
+			EntityList.this.remove(lastRet);
+			cursor = lastRet;
+			lastRet = -1;
+			expectedModCount = modCount;
+		}
+
+		@Override
+		public void set(X entity) {
+			if (lastRet < 0)
+				throw new IllegalStateException();
+			checkForComodification();
+			EntityList.this.set(lastRet, entity);
+			expectedModCount = modCount;
+		}
+
+		@Override
+		public void add(X entity) {
+			checkForComodification();
+			EntityList.this.add(cursor++, entity);
+			lastRet = -1;
+			expectedModCount = modCount;
+		}
+
+		private void checkForComodification() {
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+		}
+	}
+
+	@Override
+	public int size() {
+		return keys.size();
+	}
+
+	@Override
+	public X set(int index, X entity) {
+		X old = get(index);
+		String key = keyOf(entity);
+		changing();
+		keys.set(index, key);
+		added.set(index, entity);
+		return old;
+	}
+
+	@Override
+	public void add(int index, X entity) {
+		String key = keyOf(entity);
+		changing();
+		keys.add(index, key);
+		added.add(index, entity);
+		modCount++;
+	}
+
+	@Override
+	public X remove(int index) {
+		X old = get(index);
+		changing();
+		keys.remove(index);
+		added.remove(index);
+		modCount++;
+		return old;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		// Compare keys so that removing an element does not resolve the others
+		if (!entityClass.isInstance(o))
+			return false;
+		String key = ((Entity)o).getKeyFieldValue();
+		for (int i = 0; i < keys.size(); i++) {
+			X entity = added.get(i);
+			if (entity == o || (entity != null ? entity.getKeyFieldValue() : keys.get(i)).equals(key)) {
+				changing();
+				keys.remove(i);
+				added.remove(i);
+				modCount++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void clear() {
+		changing();
+		keys.clear();
+		added.clear();
+		modCount++;
+	}
+
+	// Called by the map when the entity of an element is rekeyed
+	void rekeyed(String oldKey, String newKey) {
+		for (int i = 0; i < keys.size(); i++) {
+			if (added.get(i) == null && keys.get(i).equals(oldKey)) {
+				changing();
+				keys.set(i, newKey);
+			}
+		}
+	}
+
+	// Lets a rollback of the current transaction restore the elements
+	private void changing() {
+		Transaction tx = Transaction.current();
+		if (tx != null)
+			tx.changing(this);
+	}
+
+	// Returns what restores the elements to those the list has now
+	Runnable restorer() {
+		List<String> keys = new ArrayList<String>(this.keys);
+		List<X> added = new ArrayList<X>(this.added);
+		return () -> {
+			setKeys(keys);
+			Collections.copy(this.added, added);
+		};
+	}
+
+	private String keyOf(X entity) {
+		if (entity == null)
+			throw new NullPointerException("EntityList elements cannot be null");
+		return entity.getKeyFieldValue();
 	}
 
 	Entity getParent() {
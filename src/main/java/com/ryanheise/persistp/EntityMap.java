@@ -3,6 +3,7 @@ package com.ryanheise.persistp;
 import java.util.Map;
 import java.util.HashMap;
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.Set;
 import java.util.HashSet;
 import java.lang.reflect.Constructor;
@@ -12,7 +13,26 @@ import java.util.Iterator;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import java.io.File;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.attribute.FileTime;
 
 /**
  * Give it a base directory and a path containing a * wildcard.
@@ -20,53 +40,211 @@ import java.io.File;
  * become the key in the map.
  */
 public class EntityMap<X extends Entity> extends AbstractMap<String, X> implements EntityContainer<X> {
-	private static Map<File, SoftReference<EntityMap<? extends Entity>>> cache = new HashMap<File, SoftReference<EntityMap<? extends Entity>>>();
+	private static Map<File, SoftReference<EntityMap<? extends Entity>>> cache = new ConcurrentHashMap<File, SoftReference<EntityMap<? extends Entity>>>();
+	private static volatile boolean watching;
+	static volatile Metrics metrics = Metrics.NONE;
+	private static final Map<Class<?>, Integer> defaultPrefetch = new ConcurrentHashMap<Class<?>, Integer>();
 
-	public static synchronized <Y extends Entity> EntityMap<Y> instance(Class<Y> entityClass, String filePattern) throws IOException {
+	public static <Y extends Entity> EntityMap<Y> instance(Class<Y> entityClass, String filePattern) throws IOException {
 		return instance(null, entityClass, new File(filePattern));
 	}
 
-	public static synchronized <Y extends Entity> EntityMap<Y> instance(Entity parent, Class<Y> entityClass, String filePattern) throws IOException {
+	public static <Y extends Entity> EntityMap<Y> instance(Entity parent, Class<Y> entityClass, String filePattern) throws IOException {
 		return new EntityMap<Y>(parent, entityClass, new File(filePattern));
 	}
 
-	public static synchronized <Y extends Entity> EntityMap<Y> instance(Class<Y> entityClass, File filePattern) throws IOException {
+	public static <Y extends Entity> EntityMap<Y> instance(Class<Y> entityClass, File filePattern) throws IOException {
 		return instance(null, entityClass, filePattern);
 	}
 
-	public static synchronized <Y extends Entity> EntityMap<Y> instance(Entity parent, Class<Y> entityClass, File filePattern) throws IOException {
-		EntityMap<Y> map = null;
-		SoftReference<EntityMap<? extends Entity>> mapRef = cache.get(filePattern);
-		if (mapRef != null)
-			map = (EntityMap<Y>)mapRef.get();
-		if (map == null) {
-			map = new EntityMap<Y>(parent, entityClass, filePattern);
-			if (filePattern != null)
-				cache(map);
+	/** Returns a read-only map of the entities in an archive, where filePattern is relative to the archive's root. */
+	public static <Y extends Entity> EntityMap<Y> instance(Class<Y> entityClass, EntityArchive archive, String filePattern) throws IOException {
+		return instance(null, entityClass, new File(archive.getFile(), filePattern));
+	}
+
+	public static <Y extends Entity> EntityMap<Y> instance(Entity parent, Class<Y> entityClass, File filePattern) throws IOException {
+		if (filePattern == null)
+			return new EntityMap<Y>(parent, entityClass, null);
+		while (true) {
+			SoftReference<EntityMap<? extends Entity>> mapRef = cache.compute(filePattern, (file, ref) ->
+					ref != null && ref.get() != null ? ref : new SoftReference<EntityMap<? extends Entity>>(new EntityMap<Y>(parent, entityClass, file)));
+			EntityMap<Y> map = (EntityMap<Y>)mapRef.get();
+			// Retry in the unlikely event that a new map was reclaimed already
+			if (map != null) {
+				if (watching)
+					map.watch();
+				return map;
+			}
 		}
-		return map;
 	}
 
-	private static synchronized <Y extends Entity> void cache(EntityMap<Y> entityMap) {
+	private static <Y extends Entity> void cache(EntityMap<Y> entityMap) {
 		cache.put(entityMap.filePattern, new SoftReference(entityMap));
+		if (watching)
+			entityMap.watch();
+	}
+
+	/**
+	 * Enables or disables watching for changes made to entity files outside
+	 * of PersistP. While enabled, the directory of every cached map is
+	 * watched by a single background thread, and each map invalidates the
+	 * cached entities and keys affected by a change the next time it is used.
+	 */
+	public static synchronized void setWatching(boolean watching) throws IOException {
+		if (watching == EntityMap.watching)
+			return;
+		EntityMap.watching = watching;
+		if (!watching)
+			EntityWatcher.shutdown();
+		for (SoftReference<EntityMap<? extends Entity>> ref : cache.values()) {
+			EntityMap<? extends Entity> map = ref.get();
+			if (map != null) {
+				if (watching)
+					map.watch();
+				else
+					map.stopWatching();
+			}
+		}
+	}
+
+	public static boolean isWatching() {
+		return watching;
+	}
+
+	/**
+	 * Sets where loads, saves, deletes, cache lookups and directory scans
+	 * of every map are recorded.
+	 *
+	 * @see MetricsRegistry
+	 */
+	public static void setMetrics(Metrics metrics) {
+		EntityMap.metrics = metrics != null ? metrics : Metrics.NONE;
+	}
+
+	public static Metrics getMetrics() {
+		return metrics;
 	}
 
-	private static synchronized <Y extends Entity> void renameInCache(EntityMap<Y> entityMap, File filePattern) {
-		cache.remove(entityMap.filePattern);
+	/**
+	 * Sets the executor that runs getAsync, saveAsync and deleteAsync. By
+	 * default, virtual threads are used when the runtime supports them, and
+	 * a pool of daemon threads otherwise. Passing null restores the default.
+	 */
+	public static void setAsyncExecutor(Executor executor) {
+		Async.setExecutor(executor);
+	}
+
+	public static Executor getAsyncExecutor() {
+		return Async.getExecutor();
+	}
+
+	// Forgets the maps of a closed archive
+	static void evict(File archive) {
+		cache.keySet().removeIf(file -> file.getAbsoluteFile().toPath().normalize().startsWith(archive.toPath()));
+	}
+
+	private static <Y extends Entity> void renameInCache(EntityMap<Y> entityMap, File filePattern) {
+		cache.computeIfPresent(entityMap.filePattern, (file, ref) -> ref.get() == entityMap ? null : ref);
 		entityMap.filePattern = filePattern;
 		cache(entityMap);
 	}
 
 	private Entity parent;
 	private Class<X> entityClass;
-	private File filePattern;
-	private Map<String, SoftReference<X>> entities = new HashMap<String, SoftReference<X>>();
+	// Whether keys are int or long ids, which are stored as primitives
+	private final boolean numericKeys;
+	private volatile File filePattern;
+	private volatile String metricsName;
+	private volatile EntityCache<X> entities;
+	// Loads in progress, so that concurrent gets of the same key share one load
+	private Map<String, Loading<X>> loading = new ConcurrentHashMap<String, Loading<X>>();
 	private EntrySet entrySet;
+	private volatile File starFile;
+	private volatile Revalidation revalidation = Revalidation.MODIFIED;
+	private volatile WatchKey watchKey;
+	private BlockingQueue<WatchEvent<?>> fileEvents = new LinkedBlockingQueue<WatchEvent<?>>(MAX_FILE_EVENTS);
+	// Set when an event did not fit in the queue, as for an OVERFLOW event
+	private volatile boolean fileEventsOverflowed;
+	private Map<String, FileTime> writtenTimes = new ConcurrentHashMap<String, FileTime>();
+	private volatile WriteBehind writeBehind;
+	// The FileStorage of this map unless another storage was set or mounted
+	private volatile EntityStorage storage;
+	private volatile boolean memoryMapped;
+	private volatile int loadParallelism = DEFAULT_LOAD_PARALLELISM;
+	private volatile int prefetch;
+	// Indexes of @Indexed fields by field name, created on first lookup
+	private Map<String, EntityIndex> indexes = new ConcurrentHashMap<String, EntityIndex>();
+	// The lists whose elements are resolved through this map, so that their
+	// keys can follow a rekeyed entity. Cleared references are pruned once
+	// the list has doubled since the last prune.
+	private final List<WeakReference<EntityList<X>>> lists = new ArrayList<WeakReference<EntityList<X>>>();
+	private int listsPruneSize = 16;
+
+	private static final int DEFAULT_LOAD_PARALLELISM = 16;
+	// At most this many missing entities are loaded by the caller of
+	// preload alone
+	private static final int INLINE_LOADS = 2;
+	// Shared by every map's preload, and sized for I/O rather than CPU
+	private static final ThreadPoolExecutor loader = new ThreadPoolExecutor(64, 64, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+		Thread thread = new Thread(r, "persistp-load");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		loader.allowCoreThreadTimeOut(true);
+	}
+	// The most file events kept for a map that is not being used
+	private static final int MAX_FILE_EVENTS = 1024;
 
-	private EntityMap(Entity parent, Class<X> entityClass, File filePattern) throws IOException {
+	/**
+	 * When to rescan the directory to pick up keys added or removed outside
+	 * of this map. Changes made through this map are always reflected.
+	 */
+	public enum Revalidation {
+		/** Never rescan after the first scan. */
+		NEVER,
+		/** Rescan when the modification time of the directory changes. */
+		MODIFIED,
+		/** Rescan on every access, as if there were no key index. */
+		ALWAYS
+	}
+
+	private EntityMap(Entity parent, Class<X> entityClass, File filePattern) {
 		this.parent = parent;
 		this.entityClass = entityClass;
 		this.filePattern = filePattern;
+		numericKeys = EntityMetadata.of(entityClass).numericKey;
+		entities = CachePolicy.forClass(entityClass).create(numericKeys);
+		entities.stats.map = this;
+		prefetch = defaultPrefetch.getOrDefault(entityClass, 0);
+		storage = new FileStorage(this);
+		mount();
+	}
+
+	// Reads the entities from an archive if the file pattern is within one
+	private void mount() {
+		EntityArchive archive = filePattern != null ? EntityArchive.containing(filePattern) : null;
+		if (archive != null)
+			storage = new EntityArchive.Storage(archive, this);
+	}
+
+	/**
+	 * Sets how this map caches the entities it loads. Entities already
+	 * cached are moved to the new cache, subject to its limits.
+	 */
+	public void setCachePolicy(CachePolicy policy) {
+		EntityCache<X> cache = policy.create(numericKeys);
+		cache.stats.map = this;
+		EntityCache<X> old = entities;
+		entities = cache;
+		for (Map.Entry<String, X> entry : old.entries().entrySet())
+			cache.put(entry.getKey(), entry.getValue());
+	}
+
+	/** Returns the hit, miss and eviction counts of this map's cache since its cache policy was set. */
+	public CacheStats getCacheStats() {
+		return entities.stats;
 	}
 
 	void delete() throws IOException {
@@ -83,26 +261,259 @@ public class EntityMap<X extends Entity> extends AbstractMap<String, X> implemen
 	// called by parent entity as soon as the file is known
 	void bind(File filePattern) throws IOException {
 		this.filePattern = filePattern;
+		mount();
+		invalidateKeys();
 		cache(this);
 	}
 
 	void rebind(File filePattern) throws IOException {
 		if (filePattern.equals(this.filePattern))
 			return;
+		unwatch();
 		renameInCache(this, filePattern);
-		for (SoftReference<X> ref : entities.values()) {
-			if (ref != null) {
-				X entity = ref.get();
-				if (entity != null)
-					entity.rebind();
-			}
-		}
+		invalidateKeys();
+		indexes.clear();
+		for (X entity : entities.entries().values())
+			entity.rebind();
 	}
 
 	File getFilePattern() {
 		return filePattern;
 	}
 
+	Class<X> getEntityClass() {
+		return entityClass;
+	}
+
+	// The name of this map in Metrics, which is its file pattern unless it
+	// is the child map of an entity
+	String metricsName() {
+		String metricsName = this.metricsName;
+		if (metricsName != null)
+			return metricsName;
+		File filePattern = this.filePattern;
+		return filePattern != null ? filePattern.getPath() : "";
+	}
+
+	void setMetricsName(String metricsName) {
+		this.metricsName = metricsName;
+	}
+
+	public Revalidation getRevalidation() {
+		return revalidation;
+	}
+
+	public void setRevalidation(Revalidation revalidation) {
+		this.revalidation = revalidation;
+	}
+
+	/** Returns the storage of this map's entities, or null if they are stored one per file. */
+	public EntityStorage getStorage() {
+		EntityStorage storage = this.storage;
+		return storage instanceof FileStorage ? null : storage;
+	}
+
+	// Returns the storage through which this map's entities are read and
+	// written, which is never null
+	EntityStorage storage() {
+		return storage;
+	}
+
+	/**
+	 * Stores this map's entities in the given storage instead of one file
+	 * per entity, or in files again if null. The entity file pattern must
+	 * end in .properties, .xml or .bin, and still determines the format and
+	 * the location of child containers. Keys are listed by the storage, and
+	 * watching, write-behind and transactions do not apply.
+	 */
+	public void setStorage(EntityStorage storage) {
+		if (storage != null && filePattern != null && !Entity.isFileFormat(filePattern))
+			throw new IllegalArgumentException("Entities stored in an EntityStorage must be files: " + filePattern);
+		unwatch();
+		this.storage = storage != null ? storage : new FileStorage(this);
+		entities.clear();
+		indexes.clear();
+		invalidateKeys();
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Sets whether entities are loaded from memory mappings of their files,
+	 * which are kept and reused until the file's size or modification time
+	 * changes. This suits files that are read often and rarely rewritten.
+	 * Saves replace a file by renaming a new one into place, which leaves
+	 * existing mappings of the old file intact; files must not be rewritten
+	 * in place by other processes while mapped.
+	 * To map the segments of a {@link LogStorage}, see
+	 * {@link LogStorage#setMemoryMapped}.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Returns the write-behind queue used by saves to this map, which is
+	 * inherited from the parent entity's container if not set on this map.
+	 */
+	public WriteBehind getWriteBehind() {
+		if (writeBehind != null)
+			return writeBehind;
+		return parent != null ? parent.getWriteBehind() : null;
+	}
+
+	/** Sets the write-behind queue for saves to this map and its child containers, or null to save synchronously. */
+	public void setWriteBehind(WriteBehind writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	/** Discards the key index so that the next access rescans the directory. */
+	public void revalidate() {
+		EntityStorage storage = this.storage;
+		if (storage instanceof FileStorage)
+			((FileStorage)storage).invalidateKeys();
+	}
+
+	private void invalidateKeys() {
+		starFile = null;
+		revalidate();
+	}
+
+	// Registers the star directory with the watcher if it exists and is not
+	// already watched.
+	private synchronized void watch() {
+		try {
+			if (filePattern == null || !(storage instanceof FileStorage) || (watchKey != null && watchKey.isValid()))
+				return;
+			File directory = getStarFile().getParentFile();
+			if (directory.isDirectory())
+				watchKey = EntityWatcher.instance().register(this, directory.toPath());
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private synchronized void unwatch() {
+		if (watchKey != null) {
+			try {
+				EntityWatcher.instance().unregister(this, watchKey);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			watchKey = null;
+			fileEvents.clear();
+			writtenTimes.clear();
+		}
+	}
+
+	// Called when watching is disabled. Changes that were reported but not
+	// yet applied invalidate everything, since the events are discarded.
+	private synchronized void stopWatching() {
+		watchKey = null;
+		if (fileEventsOverflowed || !fileEvents.isEmpty())
+			invalidateAll();
+		fileEvents.clear();
+		fileEventsOverflowed = false;
+		writtenTimes.clear();
+	}
+
+	// Called from the watcher thread. Events are applied by the thread using
+	// this map.
+	// The queue is bounded so that a map that is not used while its
+	// directory changes does not keep every event. Once full, the events are
+	// dropped and the next access invalidates everything.
+	void fileEvent(WatchEvent<?> event) {
+		if (!fileEvents.offer(event)) {
+			fileEventsOverflowed = true;
+			fileEvents.clear();
+		}
+	}
+
+	// Records the modification time of a file written through this map so
+	// that the resulting watch event is not mistaken for an outside change.
+	void written(String key, File file) throws IOException {
+		if (watchKey != null)
+			writtenTimes.put(key, FileStorage.lastModified(file));
+		if (!indexes.isEmpty()) {
+			long lastModified = EntityIndex.lastModified(file);
+			for (EntityIndex index : indexes.values())
+				index.written(key, lastModified);
+		}
+	}
+
+	// Called by an entity being saved to this map with its new properties
+	void saved(String key, Map<String, String> props) throws IOException {
+		for (EntityIndex index : indexes.values())
+			index.put(key, props);
+	}
+
+	// Called when a transaction that changed the key is rolled back, so that
+	// the entity is reloaded from disk
+	void discard(String key) {
+		entities.remove(key);
+		for (EntityIndex index : indexes.values())
+			index.invalidate(key);
+	}
+
+	private void applyFileEvents() {
+		if (fileEventsOverflowed) {
+			fileEventsOverflowed = false;
+			fileEvents.clear();
+			invalidateAll();
+		}
+		// Only the files of a FileStorage are watched
+		if (!(storage instanceof FileStorage))
+			return;
+		FileStorage files = (FileStorage)storage;
+		WatchEvent<?> event;
+		while ((event = fileEvents.poll()) != null) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				invalidateAll();
+				continue;
+			}
+			try {
+				String key = keyOf(event.context().toString());
+				if (key == null)
+					continue;
+				File file = substitute(key);
+				for (EntityIndex index : indexes.values())
+					index.invalidate(key);
+				if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+					if (!file.exists()) {
+						entities.remove(key);
+						writtenTimes.remove(key);
+						files.keyRemoved(key);
+					}
+				}
+				else {
+					FileTime written = writtenTimes.get(key);
+					if (written != null && written.equals(FileStorage.lastModified(file)))
+						continue;
+					entities.remove(key);
+					writtenTimes.remove(key);
+					if (file.exists())
+						files.keyAdded(key);
+				}
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	// Discards every cached entity and key, for when the changes are unknown
+	private void invalidateAll() {
+		entities.clear();
+		writtenTimes.clear();
+		revalidate();
+		for (EntityIndex index : indexes.values())
+			index.invalidateAll();
+	}
+
 	@Override
 	public Entity getParent() {
 		return parent;
@@ -121,7 +532,9 @@ public class EntityMap<X extends Entity> extends AbstractMap<String, X> implemen
 	void putEx(String key, X value) throws IOException {
 		if (filePattern == null)
 			throw new IllegalStateException("Must be associated with a file first");
-		entities.put(key, new SoftReference<X>(value));
+		entities.put(key, value);
+		if (watching)
+			watch();
 	}
 
 	@Override
@@ -130,7 +543,29 @@ public class EntityMap<X extends Entity> extends AbstractMap<String, X> implemen
 	}
 
 	public X get(int key) {
-		return get(String.valueOf(key));
+		return get((long)key);
+	}
+
+	/**
+	 * Returns the entity for a numeric key. When the entity class has an int
+	 * or long @Key, a cached entity is found without converting the key to a
+	 * string.
+	 */
+	public X get(long key) {
+		if (!numericKeys)
+			return get(String.valueOf(key));
+		applyFileEvents();
+		X entity = entities.get(key);
+		if (entity != null)
+			return entity;
+		return loadAndCache(Long.toString(key));
+	}
+
+	public boolean containsKey(long key) {
+		Set<String> keys = keys();
+		if (keys instanceof NumericKeySet)
+			return ((NumericKeySet)keys).contains(key);
+		return keys.contains(String.valueOf(key));
 	}
 
 	public X put(int key, X value) {
@@ -171,10 +606,9 @@ public class EntityMap<X extends Entity> extends AbstractMap<String, X> implemen
 
 	@Override
 	public X remove(Object key) {
-		X old = null;
-		SoftReference<X> oldRef = entities.remove(key);
-		if (oldRef != null)
-			old = oldRef.get();
+		X old = entities.remove((String)key);
+		for (EntityIndex index : indexes.values())
+			index.remove((String)key);
 		// XXX: If old is still null, should I load it before removing it to abide with the semantics of remove()?
 		return old;
 	}
@@ -192,7 +626,7 @@ public class EntityMap<X extends Entity> extends AbstractMap<String, X> implemen
 
 	@Override
 	public boolean containsKey(Object key) {
-		return get(key) != null;
+		return keys().contains(key);
 	}
 
 	@Override
@@ -201,7 +635,7 @@ public class EntityMap<X extends Entity> extends AbstractMap<String, X> implemen
 	}
 
 	private final class EntrySet extends AbstractSet<Map.Entry<String, X>> {
-		public final int size() { return keyCount(); }
+		public final int size() { return keys().size(); }
 		public final Iterator<Map.Entry<String, X>> iterator() {
 			return new EntryIterator();
 		}
@@ -209,94 +643,380 @@ public class EntityMap<X extends Entity> extends AbstractMap<String, X> implemen
 
 	private final class EntityEntry implements Map.Entry<String, X> {
 		private String key;
+		private EntryIterator iterator;
+		private int index;
 
 		public EntityEntry(String key) {
 			this.key = key;
 		}
 
+		EntityEntry(EntryIterator iterator, int index) {
+			this(iterator.keys.get(index));
+			this.iterator = iterator;
+			this.index = index;
+		}
+
 		public String getKey() {
 			return key;
 		}
 
 		public X getValue() {
+			if (iterator != null)
+				return iterator.get(index);
 			return lazyGet(getKey());
 		}
 
 		public X setValue(X entity) {
 			X old = getValue();
-			entities.put(getKey(), new SoftReference<X>(entity));
+			entities.put(getKey(), entity);
 			return old;
 		}
 	}
 
 	private final class EntryIterator implements Iterator<Map.Entry<String, X>> {
-		private List<String> keys = new ArrayList<String>();
+		private List<String> keys = new ArrayList<String>(keys());
 		private int i = -1;
-
-		public EntryIterator() {
-			try {
-				// /a/b/c/d/e*f/g/h/i
-				File starFile = getStarFile();
-				// starFile contains *
-				String pattern = starFile.getName();
-				int starIdx = pattern.indexOf('*');
-				String beforeStar = pattern.substring(0, starIdx);
-				String afterStar = pattern.substring(starIdx + 1);
-				File directory = starFile.getParentFile();
-				if (directory.exists()) {
-					for (File file : directory.listFiles()) {
-						String name = file.getName();
-						String part = name;
-						if (part.startsWith(beforeStar)) {
-							part = part.substring(beforeStar.length());
-							if (part.endsWith(afterStar)) {
-								part = part.substring(0, part.length() - afterStar.length());
-								if (substitute(part).exists())
-									keys.add(part);
-							}
-						}
-					}
-				}
-			}
-			catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}
+		private final int window = prefetch;
+		private final Prefetcher<X> prefetcher = window > 0 ? new Prefetcher<X>(EntityMap.this) : null;
 
 		public final Map.Entry<String, X> next() {
+			if (prefetcher != null)
+				return new EntityEntry(this, ++i);
 			return new EntityEntry(keys.get(++i));
 		}
 
+		// Loads the value of an entry, which starts loading the values after it
+		X get(int index) {
+			return prefetcher.get(keys, index, window);
+		}
+
 		@Override
 		public boolean hasNext() {
 			return i + 1 < keys.size();
 		}
 	}
 
+	/**
+	 * Returns a future of the entity for the key, or of null if there is
+	 * none. An entity that is already cached is returned without waiting for
+	 * the executor.
+	 */
+	public CompletableFuture<X> getAsync(String key) {
+		applyFileEvents();
+		X entity = entities.peek(key);
+		if (entity != null)
+			return CompletableFuture.completedFuture(entity);
+		return Async.supply(() -> lazyGet(key));
+	}
+
 	public X lazyGet(String key) {
-		X entity = null;
-		SoftReference<X> ref = entities.get(key);
-		if (ref != null) {
-			entity = ref.get();
-			if (entity == null) System.out.println(key + " ref is null");
-		}
-		if (entity == null) {
-			File file = substitute(key);
-			if (file.exists()) {
+		applyFileEvents();
+		X entity = entities.get(key);
+		if (entity != null)
+			return entity;
+		return loadAndCache(key);
+	}
+
+	// Loads an entity that was not found in the cache, sharing the load with
+	// any other thread loading the same key.
+	private X loadAndCache(String key) {
+		Loading<X> load = new Loading<X>();
+		Loading<X> existing = loading.putIfAbsent(key, load);
+		// A load of the same key by this thread means that the entity refers to
+		// itself while loading, so waiting for it would never finish.
+		if (existing != null && existing.thread != Thread.currentThread())
+			return existing.join();
+		try {
+			// Another thread may have finished loading since the cache was checked
+			X entity = entities.peek(key);
+			if (entity == null) {
+				entity = load(key);
+				if (entity != null)
+					entities.put(key, entity);
+			}
+			load.complete(entity);
+			return entity;
+		}
+		catch (RuntimeException e) {
+			load.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			if (existing == null)
+				loading.remove(key, load);
+		}
+	}
+
+	private static final class Loading<X> extends CompletableFuture<X> {
+		final Thread thread = Thread.currentThread();
+
+		@Override
+		public X join() {
+			try {
+				return super.join();
+			}
+			catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw e;
+			}
+		}
+	}
+
+	// Loads the entity from its file without caching it, or returns null if
+	// there is no such file.
+	private X load(String key) {
+		if (!exists(key))
+			return null;
+		try {
+			X entity = entityClass.newInstance();
+			entity.load(this, key);
+			return entity;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a stream of the entities in this map with only their key and
+	 * the given @Prop fields loaded. Other fields keep their default values,
+	 * and child containers and back references are not set. The entities are
+	 * read from their files as the stream is consumed, are not cached, and
+	 * cannot be saved or deleted.
+	 */
+	public Stream<X> project(String... fields) {
+		EntityField[] projected = propFields(fields);
+		return new ArrayList<String>(keys()).stream()
+				.map(key -> loadPartial(key, projected))
+				.filter(Objects::nonNull);
+	}
+
+	/** Returns the value of a @Prop field of every entity in this map by key. */
+	public <T> Map<String, T> propertyValues(String field) {
+		EntityField[] projected = propFields(field);
+		Map<String, T> values = new HashMap<String, T>();
+		for (String key : new ArrayList<String>(keys())) {
+			X entity = loadPartial(key, projected);
+			if (entity != null)
+				values.put(key, (T)projected[0].get(entity));
+		}
+		return values;
+	}
+
+	private EntityField[] propFields(String... names) {
+		EntityField[] propFields = EntityMetadata.of(entityClass).propFields;
+		EntityField[] fields = new EntityField[names.length];
+		outer: for (int i = 0; i < names.length; i++) {
+			for (EntityField field : propFields) {
+				if (field.name.equals(names[i])) {
+					if (field.pattern != null)
+						throw new IllegalArgumentException("Cannot project entity list " + names[i]);
+					fields[i] = field;
+					continue outer;
+				}
+			}
+			throw new IllegalArgumentException(entityClass.getName() + " has no @Prop field " + names[i]);
+		}
+		return fields;
+	}
+
+	private X loadPartial(String key, EntityField[] fields) {
+		if (!exists(key))
+			return null;
+		try {
+			X entity = Entity.newPartial(entityClass);
+			entity.loadPartial(this, key, fields);
+			return entity;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private boolean exists(String key) {
+		try {
+			return storage.exists(key);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * Sets the number of entities loaded ahead in the background while the
+	 * values of this map are iterated, or while the elements of an
+	 * EntityList that resolves through this map are iterated. The
+	 * default of 0 disables prefetching.
+	 */
+	public void setPrefetch(int window) {
+		if (window < 0)
+			throw new IllegalArgumentException("window must not be negative");
+		prefetch = window;
+	}
+
+	/** Sets the prefetch window of maps of the entity class created from now on, such as the child maps of lists. */
+	public static void setDefaultPrefetch(Class<? extends Entity> entityClass, int window) {
+		if (window < 0)
+			throw new IllegalArgumentException("window must not be negative");
+		defaultPrefetch.put(entityClass, window);
+	}
+
+	public int getLoadParallelism() {
+		return loadParallelism;
+	}
+
+	/**
+	 * Sets the maximum number of entities loaded concurrently by
+	 * {@link #preload}, on a pool of up to 64 threads shared by every map.
+	 */
+	public void setLoadParallelism(int loadParallelism) {
+		if (loadParallelism < 1)
+			throw new IllegalArgumentException("loadParallelism must be positive");
+		this.loadParallelism = loadParallelism;
+	}
+
+	/**
+	 * Loads every entity in this map into the cache.
+	 * @see #preload(Collection)
+	 */
+	public Map<String, X> loadAll() {
+		applyFileEvents();
+		return preload(new ArrayList<String>(keys()));
+	}
+
+	/**
+	 * Loads the entities with the given keys into the cache, reading up to
+	 * {@link #getLoadParallelism()} files concurrently. Entities that are
+	 * already cached are not reloaded.
+	 * @return the entities in the order of the given keys, omitting keys
+	 * with no entity.
+	 */
+	public Map<String, X> preload(Collection<String> keys) {
+		applyFileEvents();
+		Map<String, X> result = new LinkedHashMap<String, X>();
+		List<String> missing = new ArrayList<String>();
+		for (String key : keys) {
+			X entity = entities.peek(key);
+			result.put(key, entity);
+			if (entity == null)
+				missing.add(key);
+		}
+		if (!missing.isEmpty()) {
+			List<X> loaded = load(missing);
+			for (int i = 0; i < missing.size(); i++)
+				result.put(missing.get(i), loaded.get(i));
+		}
+		result.values().removeIf(Objects::isNull);
+		return result;
+	}
+
+	// Loads the entities of the keys, with the caller taking part alongside
+	// up to loadParallelism - 1 pool threads. Pool threads that start after
+	// every key has been taken have nothing to do, so the caller waits only
+	// for the keys being loaded.
+	private List<X> load(List<String> keys) {
+		int count = keys.size();
+		List<X> loaded = new ArrayList<X>(Collections.nCopies(count, null));
+		AtomicInteger next = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(count);
+		RuntimeException[] error = new RuntimeException[1];
+		Runnable worker = () -> {
+			for (int i; (i = next.getAndIncrement()) < count;) {
 				try {
-					entity = entityClass.newInstance();
-					entity.load(this, key);
-					entities.put(key, new SoftReference<X>(entity));
+					X entity = lazyGet(keys.get(i));
+					synchronized (loaded) {
+						loaded.set(i, entity);
+					}
 				}
 				catch (RuntimeException e) {
-					throw e;
+					synchronized (loaded) {
+						if (error[0] == null)
+							error[0] = e;
+					}
 				}
-				catch (Exception e) {
-					throw new RuntimeException(e);
+				finally {
+					done.countDown();
 				}
 			}
+		};
+		int helpers = count <= INLINE_LOADS ? 0 : Math.min(loadParallelism, count) - 1;
+		for (int i = 0; i < helpers; i++)
+			loader.execute(worker);
+		worker.run();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
 		}
-		return entity;
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		synchronized (loaded) {
+			if (error[0] != null)
+				throw error[0];
+			return loaded;
+		}
+	}
+
+	/**
+	 * Returns the entities whose @Indexed field has the given value, ordered
+	 * by key.
+	 */
+	public List<X> findBy(String field, Object value) {
+		return new ArrayList<X>(preload(findKeys(field, Objects.requireNonNull(value), value)).values());
+	}
+
+	/**
+	 * Returns the entities whose @Indexed field is between from and to
+	 * inclusive, ordered by value. Either bound may be null for no bound.
+	 */
+	public List<X> findBetween(String field, Object from, Object to) {
+		return new ArrayList<X>(preload(findKeys(field, from, to)).values());
+	}
+
+	/** Returns the keys of the entities whose @Indexed field has the given value without loading them. */
+	public List<String> findKeysBy(String field, Object value) {
+		return findKeys(field, Objects.requireNonNull(value), value);
+	}
+
+	/** Returns the keys of the entities whose @Indexed field is between from and to inclusive without loading them. */
+	public List<String> findKeysBetween(String field, Object from, Object to) {
+		return findKeys(field, from, to);
+	}
+
+	private List<String> findKeys(String field, Object from, Object to) {
+		try {
+			return index(field).find(from, to);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private EntityIndex index(String name) {
+		EntityIndex index = indexes.get(name);
+		if (index != null)
+			return index;
+		for (EntityField field : EntityMetadata.of(entityClass).indexedFields) {
+			if (field.name.equals(name))
+				return indexes.computeIfAbsent(name, n -> new EntityIndex(this, field));
+		}
+		throw new IllegalArgumentException(entityClass.getName() + " has no @Indexed field " + name);
 	}
 
 	@Override
@@ -307,59 +1027,94 @@ public class EntityMap<X extends Entity> extends AbstractMap<String, X> implemen
 	@Override
 	public void rekeyEntity(String oldKey, String newKey) throws IOException {
 		X entity = get(oldKey);
-		File oldFile = substituteStarFile(oldKey);
-		File newFile = substituteStarFile(newKey);
-		if (!oldFile.renameTo(newFile))
-			throw new IOException("Failed to rename " + oldFile + " to " + newFile);
+		storage.rename(oldKey, newKey);
 		putEntity(entity);
 		removeEntity(oldKey);
+		for (EntityList<X> list : lists())
+			list.rekeyed(oldKey, newKey);
+	}
+
+	/** Registers a list whose elements are resolved through this map. */
+	void addList(EntityList<X> list) {
+		synchronized (lists) {
+			if (lists.size() >= listsPruneSize) {
+				lists.removeIf(ref -> ref.get() == null);
+				listsPruneSize = Math.max(16, lists.size() * 2);
+			}
+			lists.add(new WeakReference<EntityList<X>>(list));
+		}
+	}
+
+	private List<EntityList<X>> lists() {
+		List<EntityList<X>> result = new ArrayList<EntityList<X>>();
+		synchronized (lists) {
+			for (WeakReference<EntityList<X>> ref : lists) {
+				EntityList<X> list = ref.get();
+				if (list != null)
+					result.add(list);
+			}
+		}
+		return result;
 	}
 
 	File getStarFile() throws IOException {
-		File starFile = filePattern.getCanonicalFile();
+		File starFile = this.starFile;
+		if (starFile != null)
+			return starFile;
+		starFile = filePattern.getCanonicalFile();
 		while (starFile != null && !starFile.getName().contains("*"))
 			starFile = starFile.getParentFile();
 		if (starFile == null)
 			throw new IllegalArgumentException("filePattern must contain *");
-		return starFile;
+		return this.starFile = starFile;
 	}
 
 	File substituteStarFile(String key) throws IOException {
 		return new File(getStarFile().getPath().replace("*", key));
 	}
 
-	private int keyCount() {
-		try {
-			int count = 0;
-			// /a/b/c/d/e*f/g/h/i
-			File starFile = getStarFile();
-			// starFile contains *
-			String pattern = starFile.getName();
-			int starIdx = pattern.indexOf('*');
-			String beforeStar = pattern.substring(0, starIdx);
-			String afterStar = pattern.substring(starIdx + 1);
-			File directory = starFile.getParentFile();
-			if (directory.exists()) {
-				for (File file : directory.listFiles()) {
-					String name = file.getName();
-					String part = name;
-					if (part.startsWith(beforeStar)) {
-						part = part.substring(beforeStar.length());
-						if (part.endsWith(afterStar)) {
-							part = part.substring(0, part.length() - afterStar.length());
-							if (substitute(part).exists())
-								count++;
-						}
-					}
-				}
-			}
-			return count;
-		}
-		catch (RuntimeException e) {
-			throw e;
-		}
-		catch (IOException e) {
-			throw new RuntimeException(e);
+	/** Returns the keys of the entities in this map as listed by its storage. */
+	Set<String> keys() {
+		applyFileEvents();
+		return storage.keys();
+	}
+
+	/** Returns the keys of the entities in an archive. */
+	Set<String> scanKeys(EntityArchive archive) throws IOException {
+		long start = System.nanoTime();
+		Set<String> keys = new HashSet<String>();
+		boolean nested = !getStarFile().equals(filePattern.getCanonicalFile());
+		for (String name : archive.list(getStarFile().getParentFile())) {
+			String part = keyOf(name);
+			if (part != null && (!nested || archive.exists(substitute(part))))
+				keys.add(part);
 		}
+		metrics.scanned(metricsName(), entityClass, System.nanoTime() - start);
+		return keys;
+	}
+
+	/** Returns the key of a file in the star directory, or null if the name does not match. */
+	private String keyOf(String name) throws IOException {
+		int end = keyEnd(name);
+		return end >= 0 ? name.substring(getStarFile().getName().indexOf('*'), end) : null;
+	}
+
+	/**
+	 * Returns the index in a file name in the star directory at which its key
+	 * ends, or -1 if the name does not match. The key starts at the index of
+	 * the * in the pattern.
+	 */
+	int keyEnd(String name) throws IOException {
+		if (name.startsWith(EntityIndex.FILE_PREFIX))
+			return -1;
+		// /a/b/c/d/e*f/g/h/i
+		// starFile contains *
+		String pattern = getStarFile().getName();
+		int starIdx = pattern.indexOf('*');
+		int afterLength = pattern.length() - starIdx - 1;
+		if (name.length() >= pattern.length() - 1 && name.regionMatches(0, pattern, 0, starIdx)
+				&& name.regionMatches(name.length() - afterLength, pattern, starIdx + 1, afterLength))
+			return name.length() - afterLength;
+		return -1;
 	}
 }
@@ -0,0 +1,108 @@
+package com.ryanheise.persistp;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The persistent fields of an Entity subclass. This is computed once per
+ * class on first use and shared by every instance of that class.
+ */
+final class EntityMetadata {
+	private static final ClassValue<EntityMetadata> metadata = new ClassValue<EntityMetadata>() {
+		@Override
+		protected EntityMetadata computeValue(Class<?> klass) {
+			return new EntityMetadata(klass);
+		}
+	};
+
+	static EntityMetadata of(Class<?> klass) {
+		return metadata.get(klass);
+	}
+
+	final Class<?> entityClass;
+	final EntityField keyField;
+	/** Whether the @Key field is an int or long, so that keys are numeric ids. */
+	final boolean numericKey;
+	/** Fields annotated with @Prop. */
+	final EntityField[] propFields;
+	/** Indexes into propFields by property name. */
+	private final Map<String, Integer> propIndexes = new HashMap<String, Integer>();
+	/** Fields annotated with @FPattern. */
+	final EntityField[] patternFields;
+	/** Fields annotated with @BackRef. */
+	final EntityField[] backRefFields;
+	/** Fields annotated with @Indexed. */
+	final EntityField[] indexedFields;
+	/** Non-entity @Prop lists which are initialised with an empty list. */
+	final EntityField[] listFields;
+	/** The generated codec for this class, or null to use reflection. */
+	final EntityCodec<? extends Entity> codec;
+
+	private EntityMetadata(Class<?> klass) {
+		entityClass = klass;
+		EntityField keyField = null;
+		List<EntityField> propFields = new ArrayList<EntityField>();
+		List<EntityField> patternFields = new ArrayList<EntityField>();
+		List<EntityField> backRefFields = new ArrayList<EntityField>();
+		List<EntityField> indexedFields = new ArrayList<EntityField>();
+		List<EntityField> listFields = new ArrayList<EntityField>();
+		for (Field f : klass.getDeclaredFields()) {
+			// Constants, counters and compiler-generated fields are not persistent
+			if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic())
+				continue;
+			EntityField field = new EntityField(f);
+			if (field.key) {
+				if (keyField != null)
+					throw new IllegalStateException("Cannot have more than 1 field with @Key annotation");
+				else
+					keyField = field;
+			}
+			if (field.pattern != null) {
+				if (field.type != Map.class && field.type != List.class && field.type != One.class)
+					throw new IllegalStateException(field.type + " field doesn't support @FPattern");
+				patternFields.add(field);
+			}
+			else if (field.isProp() && field.type == List.class) {
+				if (field.elementType != String.class && field.elementType != Integer.class)
+					throw new IllegalStateException(field.type + " field has unsupported type for @Prop");
+				listFields.add(field);
+			}
+			if (field.isProp()) {
+				propIndexes.put(field.propName, propFields.size());
+				propFields.add(field);
+			}
+			if (field.backRef)
+				backRefFields.add(field);
+			if (field.indexed) {
+				if (!field.isProp() || !EntityIndex.isIndexable(field.type))
+					throw new IllegalStateException(field.name + " field doesn't support @Indexed");
+				indexedFields.add(field);
+			}
+		}
+		this.keyField = keyField;
+		numericKey = keyField != null && (keyField.type == Integer.TYPE || keyField.type == Long.TYPE
+				|| keyField.type == Integer.class || keyField.type == Long.class);
+		this.propFields = propFields.toArray(new EntityField[0]);
+		this.patternFields = patternFields.toArray(new EntityField[0]);
+		this.backRefFields = backRefFields.toArray(new EntityField[0]);
+		this.indexedFields = indexedFields.toArray(new EntityField[0]);
+		this.listFields = listFields.toArray(new EntityField[0]);
+		codec = Entity.class.isAssignableFrom(klass) ? EntityCodec.find((Class<? extends Entity>)klass) : null;
+	}
+
+	/** Returns the @Prop field stored under the given property name, or null. */
+	EntityField propField(String propName) {
+		Integer i = propIndexes.get(propName);
+		return i != null ? propFields[i] : null;
+	}
+
+	/** Returns the index in propFields of the @Prop field stored under the given property name, or -1. */
+	int propIndex(String propName) {
+		Integer i = propIndexes.get(propName);
+		return i != null ? i : -1;
+	}
+}
@@ -0,0 +1,43 @@
+package com.ryanheise.persistp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Stores the serialized entities of an EntityMap by key in place of the
+ * default layout of one file per entity. Set with
+ * {@link EntityMap#setStorage}. Implementations must be thread-safe.
+ *
+ * @see LogStorage
+ */
+public interface EntityStorage extends Closeable {
+	/** Returns the data stored for the key, or null if there is none. */
+	byte[] read(String key) throws IOException;
+
+	/**
+	 * Returns a buffer over the data stored for the key, or null if there is
+	 * none. Implementations may return a view of their own memory rather
+	 * than a copy.
+	 */
+	default ByteBuffer readBuffer(String key) throws IOException {
+		byte[] data = read(key);
+		return data != null ? ByteBuffer.wrap(data) : null;
+	}
+
+	void write(String key, byte[] data) throws IOException;
+
+	void delete(String key) throws IOException;
+
+	/** Returns whether data is stored for the key. */
+	default boolean exists(String key) throws IOException {
+		return keys().contains(key);
+	}
+
+	/** Moves the data stored for oldKey to newKey. */
+	void rename(String oldKey, String newKey) throws IOException;
+
+	/** Returns a live, unmodifiable view of the stored keys. */
+	Set<String> keys();
+}
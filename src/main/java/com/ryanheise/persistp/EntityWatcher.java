@@ -0,0 +1,116 @@
+package com.ryanheise.persistp;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single background thread that watches the star directories of every
+ * watched EntityMap and forwards file events to the maps. Maps are only
+ * weakly referenced so that watching does not keep them in memory.
+ */
+final class EntityWatcher implements Runnable {
+	private static EntityWatcher instance;
+
+	static synchronized EntityWatcher instance() throws IOException {
+		if (instance == null) {
+			instance = new EntityWatcher();
+			Thread thread = new Thread(instance, "persistp-watcher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return instance;
+	}
+
+	static synchronized void shutdown() throws IOException {
+		if (instance != null) {
+			instance.watchService.close();
+			instance = null;
+		}
+	}
+
+	private final WatchService watchService;
+	private final Map<WatchKey, List<WeakReference<EntityMap<? extends Entity>>>> maps = new HashMap<WatchKey, List<WeakReference<EntityMap<? extends Entity>>>>();
+
+	private EntityWatcher() throws IOException {
+		watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	synchronized WatchKey register(EntityMap<? extends Entity> map, Path directory) throws IOException {
+		WatchKey key = directory.register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		List<WeakReference<EntityMap<? extends Entity>>> refs = maps.get(key);
+		if (refs == null)
+			maps.put(key, refs = new ArrayList<WeakReference<EntityMap<? extends Entity>>>());
+		refs.add(new WeakReference<EntityMap<? extends Entity>>(map));
+		return key;
+	}
+
+	synchronized void unregister(EntityMap<? extends Entity> map, WatchKey key) {
+		List<WeakReference<EntityMap<? extends Entity>>> refs = maps.get(key);
+		if (refs == null)
+			return;
+		refs.removeIf(ref -> ref.get() == null || ref.get() == map);
+		if (refs.isEmpty()) {
+			maps.remove(key);
+			key.cancel();
+		}
+	}
+
+	private synchronized List<EntityMap<? extends Entity>> mapsFor(WatchKey key) {
+		List<EntityMap<? extends Entity>> result = new ArrayList<EntityMap<? extends Entity>>();
+		List<WeakReference<EntityMap<? extends Entity>>> refs = maps.get(key);
+		if (refs != null) {
+			for (Iterator<WeakReference<EntityMap<? extends Entity>>> i = refs.iterator(); i.hasNext();) {
+				EntityMap<? extends Entity> map = i.next().get();
+				if (map == null)
+					i.remove();
+				else
+					result.add(map);
+			}
+			if (refs.isEmpty()) {
+				maps.remove(key);
+				key.cancel();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				List<EntityMap<? extends Entity>> targets = mapsFor(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					for (EntityMap<? extends Entity> map : targets)
+						map.fileEvent(event);
+				}
+				if (!key.reset()) {
+					synchronized (this) {
+						maps.remove(key);
+					}
+				}
+			}
+		}
+		catch (ClosedWatchServiceException e) {
+			// shut down
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package com.ryanheise.persistp;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQuery;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Converts one @Prop or @Key field between its value and its property
+ * string. The codec of each field is resolved once, when the metadata of its
+ * class is computed, so loading and saving do not test the field type, and
+ * primitive fields are accessed without boxing.
+ */
+abstract class FieldCodec {
+	private static final ConcurrentHashMap<Class<?>, TypeCodec<?>> registered = new ConcurrentHashMap<Class<?>, TypeCodec<?>>();
+
+	static {
+		registered.put(BigDecimal.class, new TypeCodec<BigDecimal>() {
+			@Override
+			public BigDecimal parse(String s) {
+				return new BigDecimal(s.trim());
+			}
+
+			@Override
+			public String format(BigDecimal value) {
+				return value.toString();
+			}
+		});
+		registered.put(BigInteger.class, new TypeCodec<BigInteger>() {
+			@Override
+			public BigInteger parse(String s) {
+				return new BigInteger(s.trim());
+			}
+
+			@Override
+			public String format(BigInteger value) {
+				return value.toString();
+			}
+		});
+	}
+
+	static <T> void register(Class<T> type, TypeCodec<T> codec) {
+		if (type.isPrimitive() || type == Integer.class || type == Long.class || type == Double.class || type == Boolean.class
+				|| type == String.class || type == Date.class || type == List.class
+				|| type == int[].class || type == long[].class || type == double[].class)
+			throw new IllegalArgumentException("Cannot register a codec for " + type);
+		if (codec == null)
+			throw new NullPointerException("codec");
+		registered.put(type, codec);
+	}
+
+	static FieldCodec of(EntityField field) {
+		Class<?> type = field.type;
+		if (type == Integer.TYPE)
+			return new IntCodec(field);
+		else if (type == Long.TYPE)
+			return new LongCodec(field);
+		else if (type == Double.TYPE)
+			return new DoubleCodec(field);
+		else if (type == Boolean.TYPE)
+			return new BooleanCodec(field);
+		else if (type == Integer.class)
+			return new ObjectCodec(field, s -> EntityCodec.parseInt(s, 0));
+		else if (type == Long.class)
+			return new ObjectCodec(field, s -> EntityCodec.parseLong(s, 0L));
+		else if (type == Double.class)
+			return new ObjectCodec(field, s -> EntityCodec.parseDouble(s, 0.0));
+		else if (type == Boolean.class)
+			return new ObjectCodec(field, Boolean::valueOf);
+		else if (type == String.class)
+			return new StringCodec(field);
+		else if (type == Date.class)
+			return new DateCodec(field);
+		else if (type == List.class)
+			return new ListCodec(field);
+		else if (type == int[].class)
+			return new IntArrayCodec(field);
+		else if (type == long[].class)
+			return new LongArrayCodec(field);
+		else if (type == double[].class)
+			return new DoubleArrayCodec(field);
+		TypeCodec<?> codec = registered.get(type);
+		if (codec == null && type.isEnum())
+			codec = enumCodec((Class<? extends Enum>)type);
+		if (codec == null)
+			codec = temporalCodec(type, field.temporal);
+		if (codec == null)
+			return new UnsupportedCodec(field);
+		return new ObjectCodec(field, (TypeCodec<Object>)codec);
+	}
+
+	private static <E extends Enum<E>> TypeCodec<E> enumCodec(Class<E> type) {
+		return new TypeCodec<E>() {
+			@Override
+			public E parse(String s) {
+				return Enum.valueOf(type, s.trim());
+			}
+
+			@Override
+			public String format(E value) {
+				return value.name();
+			}
+		};
+	}
+
+	private static TypeCodec<?> temporalCodec(Class<?> type, String pattern) {
+		DateTimeFormatter iso;
+		TemporalQuery<?> query;
+		if (type == Instant.class) {
+			iso = DateTimeFormatter.ISO_INSTANT;
+			query = Instant::from;
+		}
+		else if (type == LocalDate.class) {
+			iso = DateTimeFormatter.ISO_LOCAL_DATE;
+			query = LocalDate::from;
+		}
+		else if (type == LocalDateTime.class) {
+			iso = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+			query = LocalDateTime::from;
+		}
+		else if (type == LocalTime.class) {
+			iso = DateTimeFormatter.ISO_LOCAL_TIME;
+			query = LocalTime::from;
+		}
+		else if (type == OffsetDateTime.class) {
+			iso = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+			query = OffsetDateTime::from;
+		}
+		else if (type == ZonedDateTime.class) {
+			iso = DateTimeFormatter.ISO_ZONED_DATE_TIME;
+			query = ZonedDateTime::from;
+		}
+		else
+			return null;
+		DateTimeFormatter formatter = pattern != null ? DateTimeFormatter.ofPattern(pattern) : iso;
+		// An instant has no fields of its own to format, so a pattern uses the default zone
+		if (pattern != null && type == Instant.class)
+			formatter = formatter.withZone(ZoneId.systemDefault());
+		// DateTimeFormatter is immutable, so one instance serves every thread
+		DateTimeFormatter f = formatter;
+		return new TypeCodec<TemporalAccessor>() {
+			@Override
+			public TemporalAccessor parse(String s) {
+				return (TemporalAccessor)f.parse(s.trim(), query);
+			}
+
+			@Override
+			public String format(TemporalAccessor value) {
+				return f.format(value);
+			}
+		};
+	}
+
+	final EntityField field;
+
+	FieldCodec(EntityField field) {
+		this.field = field;
+	}
+
+	/** Sets the field from its property value, which is null if the property is absent. */
+	abstract void set(Entity entity, String s) throws IOException;
+
+	/** Returns the property value of the field, or null if the property should be removed. */
+	abstract String get(Entity entity) throws IOException;
+
+	private static final class IntCodec extends FieldCodec {
+		IntCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) {
+			field.setInt(entity, EntityCodec.parseInt(s, 0));
+		}
+
+		@Override
+		String get(Entity entity) {
+			return Integer.toString(field.getInt(entity));
+		}
+	}
+
+	private static final class LongCodec extends FieldCodec {
+		LongCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) {
+			field.setLong(entity, EntityCodec.parseLong(s, 0L));
+		}
+
+		@Override
+		String get(Entity entity) {
+			return Long.toString(field.getLong(entity));
+		}
+	}
+
+	private static final class DoubleCodec extends FieldCodec {
+		DoubleCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) {
+			field.setDouble(entity, EntityCodec.parseDouble(s, 0.0));
+		}
+
+		@Override
+		String get(Entity entity) {
+			return Double.toString(field.getDouble(entity));
+		}
+	}
+
+	private static final class BooleanCodec extends FieldCodec {
+		BooleanCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) {
+			field.setBoolean(entity, EntityCodec.parseBoolean(s));
+		}
+
+		@Override
+		String get(Entity entity) {
+			return Boolean.toString(field.getBoolean(entity));
+		}
+	}
+
+	private static final class StringCodec extends FieldCodec {
+		StringCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) {
+			field.set(entity, EntityCodec.parseString(s));
+		}
+
+		@Override
+		String get(Entity entity) {
+			return (String)field.get(entity);
+		}
+	}
+
+	private static final class DateCodec extends FieldCodec {
+		DateCodec(EntityField field) {
+			super(field);
+		}
+
+		// Dates keep the SimpleDateFormat semantics they have always been saved with
+		@Override
+		void set(Entity entity, String s) throws IOException {
+			field.set(entity, EntityCodec.parseDate(s, temporal()));
+		}
+
+		@Override
+		String get(Entity entity) throws IOException {
+			Date date = (Date)field.get(entity);
+			return date != null ? EntityCodec.formatDate(date, temporal()) : null;
+		}
+
+		private String temporal() throws IOException {
+			if (field.temporal == null)
+				throw new IOException("Date field " + field.name + " requires @Temporal annotation");
+			return field.temporal;
+		}
+	}
+
+	private static final class ListCodec extends FieldCodec {
+		private final boolean entities;
+
+		ListCodec(EntityField field) {
+			super(field);
+			entities = field.elementType != null && Entity.class.isAssignableFrom(field.elementType);
+		}
+
+		@Override
+		void set(Entity entity, String s) throws IOException {
+			if (entities)
+				EntityCodec.setKeys((List<? extends Entity>)field.get(entity), s);
+			else if (field.elementType == String.class)
+				EntityCodec.setStrings((List<String>)field.get(entity), s);
+			else if (field.elementType == Integer.class)
+				EntityCodec.setIntegers((List<Integer>)field.get(entity), s);
+		}
+
+		/** This stores the key list only. It assumes each element has already been saved. */
+		@Override
+		String get(Entity entity) {
+			if (entities)
+				return EntityCodec.joinKeys((List<? extends Entity>)field.get(entity));
+			return EntityCodec.join((List<?>)field.get(entity));
+		}
+	}
+
+	private static final class IntArrayCodec extends FieldCodec {
+		IntArrayCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) throws IOException {
+			field.set(entity, EntityCodec.parseInts(s));
+		}
+
+		@Override
+		String get(Entity entity) {
+			return EntityCodec.join((int[])field.get(entity));
+		}
+	}
+
+	private static final class LongArrayCodec extends FieldCodec {
+		LongArrayCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) throws IOException {
+			field.set(entity, EntityCodec.parseLongs(s));
+		}
+
+		@Override
+		String get(Entity entity) {
+			return EntityCodec.join((long[])field.get(entity));
+		}
+	}
+
+	private static final class DoubleArrayCodec extends FieldCodec {
+		DoubleArrayCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) throws IOException {
+			field.set(entity, EntityCodec.parseDoubles(s));
+		}
+
+		@Override
+		String get(Entity entity) {
+			return EntityCodec.join((double[])field.get(entity));
+		}
+	}
+
+	/** A nullable field converted by a TypeCodec, including the boxed primitives. */
+	private static final class ObjectCodec extends FieldCodec {
+		private final TypeCodec<Object> codec;
+
+		ObjectCodec(EntityField field, TypeCodec<Object> codec) {
+			super(field);
+			this.codec = codec;
+		}
+
+		ObjectCodec(EntityField field, Function<String, Object> parser) {
+			this(field, new TypeCodec<Object>() {
+				@Override
+				public Object parse(String s) {
+					return parser.apply(s);
+				}
+
+				@Override
+				public String format(Object value) {
+					return String.valueOf(value);
+				}
+			});
+		}
+
+		@Override
+		void set(Entity entity, String s) throws IOException {
+			if (s == null || s.isEmpty()) {
+				field.set(entity, null);
+				return;
+			}
+			Object value;
+			try {
+				value = codec.parse(s);
+			}
+			catch (RuntimeException e) {
+				throw new IOException("Cannot parse \"" + s + "\" for field " + field.name, e);
+			}
+			field.set(entity, value);
+		}
+
+		@Override
+		String get(Entity entity) {
+			Object value = field.get(entity);
+			return value != null ? codec.format(value) : null;
+		}
+	}
+
+	/** Defers the error for a field of an unsupported type until it is loaded or saved. */
+	private static final class UnsupportedCodec extends FieldCodec {
+		UnsupportedCodec(EntityField field) {
+			super(field);
+		}
+
+		@Override
+		void set(Entity entity, String s) throws IOException {
+			throw new IOException("Unsupported type " + field.type);
+		}
+
+		@Override
+		String get(Entity entity) throws IOException {
+			throw new IOException("Unsupported type " + field.type);
+		}
+	}
+}
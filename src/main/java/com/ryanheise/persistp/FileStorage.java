@@ -0,0 +1,378 @@
+package com.ryanheise.persistp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default layout of one file per entity, named by substituting the key
+ * into the file pattern of the entity's container. This is the storage of
+ * every EntityMap without one of its own, and of every One.
+ *
+ * Writes made in a {@link Transaction} are kept by the transaction until it
+ * is committed, and writes to existing files go through the container's
+ * {@link WriteBehind} queue if it has one. The key index of a map is scanned
+ * from its directory and revalidated as set by
+ * {@link EntityMap#setRevalidation}.
+ */
+final class FileStorage implements EntityStorage {
+	private final EntityContainer<? extends Entity> container;
+	// The container if it is a map, or null for the file of a One
+	private final EntityMap<? extends Entity> map;
+	private volatile Set<String> keys;
+	private volatile FileTime keysModified;
+
+	FileStorage(EntityContainer<? extends Entity> container) {
+		this.container = container;
+		map = container instanceof EntityMap ? (EntityMap<? extends Entity>)container : null;
+	}
+
+	EntityMap<? extends Entity> getMap() {
+		return map;
+	}
+
+	File file(String key) throws IOException {
+		return container.substitute(key).getCanonicalFile();
+	}
+
+	private WriteBehind writeBehind() {
+		return map != null ? map.getWriteBehind() : container.getParent().getWriteBehind();
+	}
+
+	@Override
+	public byte[] read(String key) throws IOException {
+		ByteBuffer data = readBuffer(key);
+		if (data == null)
+			return null;
+		if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length)
+			return data.array();
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		return bytes;
+	}
+
+	@Override
+	public ByteBuffer readBuffer(String key) throws IOException {
+		File file = file(key);
+		// A save may still be in an uncommitted transaction or queued for writing
+		byte[] pending = pending(file);
+		if (pending != null)
+			return ByteBuffer.wrap(pending);
+		// Entities in an archive that are not in a map, such as that of a One
+		EntityArchive archive = EntityArchive.containing(file);
+		if (archive != null)
+			return archive.exists(file) ? ByteBuffer.wrap(archive.read(file)) : null;
+		try {
+			if (map != null && map.isMemoryMapped())
+				return MappedFiles.map(file);
+			return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		}
+		catch (FileNotFoundException | NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	// Returns the data of a write to the file that has not been made yet
+	private byte[] pending(File file) {
+		Transaction tx = Transaction.current();
+		WriteBehind writeBehind = writeBehind();
+		byte[] pending = tx != null ? tx.pending(file) : null;
+		if (pending == null && writeBehind != null)
+			pending = writeBehind.pending(file);
+		return pending;
+	}
+
+	/** Returns whether a write to the file of the key has yet to be made. */
+	boolean isPending(String key) throws IOException {
+		return pending(file(key)) != null;
+	}
+
+	@Override
+	public boolean exists(String key) throws IOException {
+		// A key added or removed by the current transaction
+		Transaction tx = Transaction.current();
+		Boolean pending = tx != null ? tx.exists(this, key) : null;
+		if (pending != null)
+			return pending;
+		File file = file(key);
+		EntityArchive archive = EntityArchive.containing(file);
+		return archive != null ? archive.exists(file) : file.exists();
+	}
+
+	// New files are written immediately so that they can be found by
+	// directory scans.
+	@Override
+	public void write(String key, byte[] data) throws IOException {
+		File file = file(key);
+		Transaction tx = Transaction.current();
+		WriteBehind writeBehind = writeBehind();
+		if (tx != null) {
+			tx.write(file, data, this, key, writeBehind);
+		}
+		else if (writeBehind != null && file.exists()) {
+			writeBehind.enqueue(file, data, this, key);
+		}
+		else {
+			writeNow(key, file, data);
+		}
+	}
+
+	/**
+	 * Writes the file of a key immediately. Even replacing an existing file
+	 * changes the star directory, through the temporary file, so its new
+	 * modification time is recorded as for any other change of ours.
+	 */
+	void writeNow(String key, File file, byte[] data) throws IOException {
+		FileTime before = directoryModified();
+		file.getParentFile().mkdirs();
+		MappedFiles.invalidate(file);
+		writeFile(file, data);
+		afterFileChange(key, true, before);
+		written(key, file);
+	}
+
+	/** Creates the directory of an entity whose file pattern names a directory. */
+	void mkdirs(String key) throws IOException {
+		File directory = file(key);
+		Transaction tx = Transaction.current();
+		if (tx != null) {
+			tx.mkdirs(directory, this, key);
+		}
+		else {
+			FileTime before = beforeFileChange(key, true);
+			directory.mkdirs();
+			afterFileChange(key, true, before);
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		File file = file(key);
+		Transaction tx = Transaction.current();
+		WriteBehind writeBehind = writeBehind();
+		if (tx != null) {
+			tx.delete(file, this, key, writeBehind);
+		}
+		else {
+			FileTime before = beforeFileChange(key, false);
+			if (writeBehind != null)
+				writeBehind.cancel(file);
+			MappedFiles.invalidate(file);
+			Entity.deleteFile(file);
+			afterFileChange(key, false, before);
+		}
+	}
+
+	/**
+	 * Replaces the contents of a file by writing a temporary file beside it
+	 * and renaming it into place, so that neither a reader nor a memory
+	 * mapping of the old file can see it partly written. The temporary file
+	 * has the prefix of index files so that directory scans and watch events
+	 * ignore it, and one left by a crash is deleted with its directory.
+	 */
+	static void writeFile(File file, byte[] data) throws IOException {
+		File temp = new File(file.getParentFile(), EntityIndex.FILE_PREFIX + file.getName() + ".tmp");
+		try {
+			try (OutputStream out = new FileOutputStream(temp)) {
+				out.write(data);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+	}
+
+	// Moves the part of the path that contains the key, which is the
+	// entity's directory if the * is in a parent directory of its file.
+	// The file of a One does not depend on its key, so is not moved.
+	@Override
+	public void rename(String oldKey, String newKey) throws IOException {
+		if (map == null)
+			return;
+		File oldFile = map.substituteStarFile(oldKey);
+		File newFile = map.substituteStarFile(newKey);
+		Transaction tx = Transaction.current();
+		if (tx != null) {
+			tx.rename(oldFile, newFile, this, oldKey, newKey);
+		}
+		else {
+			FileTime before = directoryModified();
+			if (!oldFile.renameTo(newFile))
+				throw new IOException("Failed to rename " + oldFile + " to " + newFile);
+			afterFileChange(newKey, true, before);
+			keyRemoved(oldKey);
+		}
+	}
+
+	// Called once a file has been written
+	void written(String key, File file) throws IOException {
+		if (map != null)
+			map.written(key, file);
+	}
+
+	// Called when a transaction that changed the key is rolled back, so that
+	// the entity is reloaded from disk. The key index was never changed.
+	void discard(String key) {
+		if (map != null)
+			map.discard(key);
+		else
+			container.removeEntity(key);
+	}
+
+	/**
+	 * Returns the keys of the entities in the map, scanning the directory
+	 * only on first use or when the revalidation policy requires it. The
+	 * keys added and removed by the current thread's transaction are
+	 * included, as they are only added to the key index once the
+	 * transaction has been applied.
+	 */
+	@Override
+	public Set<String> keys() {
+		Transaction tx = Transaction.current();
+		return tx != null ? tx.keys(this, indexedKeys()) : indexedKeys();
+	}
+
+	private Set<String> indexedKeys() {
+		if (map == null)
+			throw new UnsupportedOperationException("The entity of a One has no key");
+		try {
+			File directory = map.getStarFile().getParentFile();
+			Set<String> keys = this.keys;
+			EntityMap.Revalidation revalidation = map.getRevalidation();
+			if (keys == null || revalidation == EntityMap.Revalidation.ALWAYS) {
+				keys = scanKeys(directory);
+			}
+			else if (revalidation == EntityMap.Revalidation.MODIFIED) {
+				FileTime modified = lastModified(directory);
+				if (modified == null ? keysModified != null : !modified.equals(keysModified))
+					keys = scanKeys(directory);
+			}
+			return keys;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Discards the key index so that the next access rescans the directory. */
+	void invalidateKeys() {
+		keys = null;
+	}
+
+	/** Adds a key found to have been created outside of the map to the key index. */
+	void keyAdded(String key) {
+		Set<String> keys = this.keys;
+		if (keys != null)
+			keys.add(key);
+	}
+
+	/** Removes a key found to have been deleted outside of the map from the key index. */
+	void keyRemoved(String key) {
+		Set<String> keys = this.keys;
+		if (keys != null)
+			keys.remove(key);
+	}
+
+	private Set<String> scanKeys(File directory) throws IOException {
+		long start = System.nanoTime();
+		// Read the modification time first so that a change during the scan
+		// triggers another scan on next access
+		FileTime modified = lastModified(directory);
+		NumericKeySet numeric = EntityMetadata.of(map.getEntityClass()).numericKey ? new NumericKeySet() : null;
+		Set<String> keys = numeric != null ? numeric : ConcurrentHashMap.<String>newKeySet();
+		// Only when the * is in a parent directory of the entity file do we
+		// need to check that the entity file itself exists.
+		File starFile = map.getStarFile();
+		boolean nested = !starFile.equals(map.getFilePattern().getCanonicalFile());
+		int starIdx = starFile.getName().indexOf('*');
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				int end = map.keyEnd(name);
+				if (end < 0)
+					continue;
+				// Numeric keys are parsed from the file name without a substring
+				if (numeric != null && !nested && LongKeyMap.isCanonical(name, starIdx, end)) {
+					numeric.add(LongKeyMap.parse(name, starIdx, end));
+					continue;
+				}
+				String part = name.substring(starIdx, end);
+				if (!nested || map.substitute(part).exists())
+					keys.add(part);
+			}
+		}
+		this.keys = keys;
+		keysModified = modified;
+		EntityMap.metrics.scanned(map.metricsName(), map.getEntityClass(), System.nanoTime() - start);
+		return keys;
+	}
+
+	/**
+	 * Returns the modification time of the star directory before the file of
+	 * a key is added or removed, or null if the key index is not revalidated
+	 * by modification time or would not change.
+	 */
+	private FileTime beforeFileChange(String key, boolean add) throws IOException {
+		Set<String> keys = this.keys;
+		if (keys == null || keys.contains(key) == add)
+			return null;
+		return directoryModified();
+	}
+
+	// Returns the modification time of the star directory if the key index
+	// is current and is revalidated by modification time, or null
+	FileTime directoryModified() throws IOException {
+		if (map == null || keys == null || map.getRevalidation() != EntityMap.Revalidation.MODIFIED)
+			return null;
+		return lastModified(map.getStarFile().getParentFile());
+	}
+
+	/**
+	 * Called after the file of a key has been added or removed, with the
+	 * modification time of the star directory from before the change. The
+	 * key index is updated, and if nothing else had changed the directory
+	 * since it was last scanned, its new modification time is recorded so
+	 * that the change is not mistaken for an outside one by the next access.
+	 */
+	synchronized void afterFileChange(String key, boolean add, FileTime before) throws IOException {
+		if (add)
+			keyAdded(key);
+		else
+			keyRemoved(key);
+		directoryChanged(before);
+	}
+
+	/**
+	 * Called after a change of our own to the star directory that adds or
+	 * removes no key, such as the rewrite of an index file, with its
+	 * modification time from before the change.
+	 */
+	synchronized void directoryChanged(FileTime before) throws IOException {
+		if (before != null && keys != null && before.equals(keysModified))
+			keysModified = lastModified(map.getStarFile().getParentFile());
+	}
+
+	static FileTime lastModified(File file) throws IOException {
+		try {
+			return Files.getLastModifiedTime(file.toPath());
+		}
+		catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
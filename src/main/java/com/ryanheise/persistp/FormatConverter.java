@@ -0,0 +1,73 @@
+package com.ryanheise.persistp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts the .properties entities in a directory tree to the .bin format.
+ * Values are converted as strings, and are re-encoded with their field types
+ * the next time each entity is saved. The file patterns of the converted
+ * maps must be changed to end in .bin.
+ */
+public final class FormatConverter {
+	private FormatConverter() {
+	}
+
+	/** Converts every .properties file under root, returning the number converted. */
+	public static int convertTree(File root) throws IOException {
+		File[] files = root.listFiles();
+		if (files == null)
+			throw new IOException("Not a directory: " + root);
+		int count = 0;
+		for (File file : files) {
+			if (file.isDirectory())
+				count += convertTree(file);
+			else if (file.getName().endsWith(".properties") && !file.getName().startsWith(EntityIndex.FILE_PREFIX)) {
+				convert(file);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** Converts a .properties file to a .bin file alongside it and deletes the original. */
+	public static File convert(File file) throws IOException {
+		Map<String, String> props = new TreeMap<String, String>();
+		try {
+			PropertiesCodec.read(ByteBuffer.wrap(Files.readAllBytes(file.toPath())), props::put);
+		}
+		catch (ParseException e) {
+			throw new IOException(e);
+		}
+		BinaryFormat.Writer writer = new BinaryFormat.Writer(props.size());
+		for (Map.Entry<String, String> e : props.entrySet())
+			writer.writeString(e.getKey(), e.getValue());
+		String name = file.getName();
+		File binFile = new File(file.getParentFile(), name.substring(0, name.length() - ".properties".length()) + ".bin");
+		File temp = new File(file.getParentFile(), binFile.getName() + ".tmp");
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+			out.write(writer.toByteArray());
+		}
+		if (!temp.renameTo(binFile))
+			throw new IOException("Failed to rename " + temp + " to " + binFile);
+		if (!file.delete())
+			throw new IOException("Failed to delete " + file);
+		return binFile;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: java com.ryanheise.persistp.FormatConverter <directory>");
+			System.exit(1);
+		}
+		System.out.println("Converted " + convertTree(new File(args[0])) + " entities");
+	}
+}
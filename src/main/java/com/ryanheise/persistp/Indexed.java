@@ -0,0 +1,15 @@
+package com.ryanheise.persistp;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Maintains an index of a @Prop field so that entities can be looked up by
+ * its value with {@link EntityMap#findBy} and {@link EntityMap#findBetween}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Indexed {
+}
@@ -0,0 +1,476 @@
+package com.ryanheise.persistp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the entities of an EntityMap as records appended to segment files
+ * in a directory, instead of one file per entity. An in-memory index maps
+ * each key to its latest record, and is rebuilt by replaying the segments
+ * when the storage is opened. A record torn by a crash at the end of the
+ * last segment is discarded.
+ *
+ * Once a segment is full, writing continues in a new segment, and older
+ * segments in which at least half of the bytes have been superseded or
+ * deleted are compacted in the background by copying their live records
+ * to the newest segment.
+ *
+ * As with the default layout, writes are not forced to disk as they are
+ * made. Call {@link #sync()} to do so.
+ */
+public class LogStorage implements EntityStorage {
+	private static final String SUFFIX = ".log";
+	// crc, key length, data length
+	private static final int HEADER_SIZE = 12;
+	private static final int TOMBSTONE = -1;
+
+	private final File directory;
+	private final long segmentSize;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<String, Location> index = new ConcurrentHashMap<String, Location>();
+	private final Set<String> keys = Collections.unmodifiableSet(index.keySet());
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+	private final ExecutorService compactor;
+	private volatile Segment active;
+	private volatile boolean closed;
+	private volatile boolean memoryMapped;
+
+	private static final class Segment {
+		final long id;
+		final File file;
+		final FileChannel channel;
+		// Guarded by the lock while this is the active segment
+		long size;
+		// Bytes of superseded records and tombstones
+		final AtomicLong garbage = new AtomicLong();
+		private MappedByteBuffer mapped;
+
+		Segment(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			size = channel.size();
+		}
+
+		// Returns a mapping of at least the first end bytes of the segment,
+		// remapping if the segment has grown past the current mapping
+		synchronized MappedByteBuffer map(long end) throws IOException {
+			if (mapped == null || mapped.capacity() < end)
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return mapped;
+		}
+	}
+
+	private static final class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+		final long dataOffset;
+		final int dataLength;
+
+		Location(Segment segment, long offset, int length, long dataOffset, int dataLength) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.dataOffset = dataOffset;
+			this.dataLength = dataLength;
+		}
+	}
+
+	public LogStorage(File directory) throws IOException {
+		this(directory, 64L << 20);
+	}
+
+	/**
+	 * Opens the storage in the given directory, creating it if necessary.
+	 * @param segmentSize the size beyond which writing moves to a new segment.
+	 */
+	public LogStorage(File directory, long segmentSize) throws IOException {
+		if (segmentSize < 1)
+			throw new IllegalArgumentException("segmentSize must be positive");
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		directory.mkdirs();
+		if (!directory.isDirectory())
+			throw new IOException("Cannot create " + directory);
+		recover();
+		compactor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "persistp-compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor.execute(this::compactSegments);
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+		long[] ids = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			try {
+				ids[i] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Unexpected file " + files[i]);
+			}
+		}
+		Arrays.sort(ids);
+		for (int i = 0; i < ids.length; i++) {
+			Segment segment = new Segment(ids[i], segmentFile(ids[i]));
+			segments.put(segment.id, segment);
+			long valid = replay(segment);
+			if (valid < segment.size) {
+				if (i < ids.length - 1)
+					throw new IOException("Corrupt record in " + segment.file + " at " + valid);
+				segment.channel.truncate(valid);
+				segment.size = valid;
+			}
+		}
+		if (segments.isEmpty())
+			newSegment(1);
+		else
+			active = segments.lastEntry().getValue();
+	}
+
+	// Applies the records of a segment to the index and returns the offset
+	// after the last intact record.
+	private long replay(Segment segment) throws IOException {
+		long offset = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+			while (segment.size - offset >= HEADER_SIZE) {
+				int crc = in.readInt();
+				int keyLength = in.readInt();
+				int dataLength = in.readInt();
+				long length = HEADER_SIZE + (long)keyLength + Math.max(dataLength, 0);
+				if (keyLength < 0 || dataLength < TOMBSTONE || offset + length > segment.size)
+					break;
+				byte[] keyBytes = new byte[keyLength];
+				in.readFully(keyBytes);
+				byte[] data = dataLength > 0 ? new byte[dataLength] : null;
+				if (data != null)
+					in.readFully(data);
+				if (crc != crc(keyLength, dataLength, keyBytes, data))
+					break;
+				String key = new String(keyBytes, StandardCharsets.UTF_8);
+				if (dataLength == TOMBSTONE) {
+					discard(index.remove(key));
+					segment.garbage.addAndGet(length);
+				}
+				else {
+					Location location = new Location(segment, offset, (int)length, offset + HEADER_SIZE + keyLength, dataLength);
+					discard(index.put(key, location));
+				}
+				offset += length;
+			}
+		}
+		catch (EOFException e) {
+			// Torn record
+		}
+		return offset;
+	}
+
+	private static int crc(int keyLength, int dataLength, byte[] keyBytes, byte[] data) {
+		CRC32 crc = new CRC32();
+		ByteBuffer header = ByteBuffer.allocate(8).putInt(keyLength).putInt(dataLength);
+		crc.update(header.array());
+		crc.update(keyBytes);
+		if (data != null)
+			crc.update(data);
+		return (int)crc.getValue();
+	}
+
+	private static void discard(Location location) {
+		if (location != null)
+			location.segment.garbage.addAndGet(location.length);
+	}
+
+	private File segmentFile(long id) {
+		return new File(directory, String.format("%010d", id) + SUFFIX);
+	}
+
+	private void newSegment(long id) throws IOException {
+		// Only the active segment is forced by sync(), so the one it
+		// replaces is forced now
+		if (active != null)
+			active.channel.force(false);
+		Segment segment = new Segment(id, segmentFile(id));
+		segments.put(id, segment);
+		active = segment;
+	}
+
+	@Override
+	public byte[] read(String key) throws IOException {
+		while (true) {
+			Location location = index.get(key);
+			if (location == null)
+				return null;
+			ByteBuffer buffer = ByteBuffer.allocate(location.dataLength);
+			try {
+				readFully(location.segment.channel, buffer, location.dataOffset);
+				return buffer.array();
+			}
+			catch (ClosedChannelException e) {
+				// The segment was compacted after the lookup, so look up the
+				// record's new location
+				if (closed || index.get(key) == location)
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Returns a view of the record in a memory mapping of its segment if
+	 * memory mapping is enabled, or a copy otherwise.
+	 */
+	@Override
+	public ByteBuffer readBuffer(String key) throws IOException {
+		if (!memoryMapped)
+			return EntityStorage.super.readBuffer(key);
+		while (true) {
+			Location location = index.get(key);
+			if (location == null)
+				return null;
+			long end = location.dataOffset + location.dataLength;
+			if (end > Integer.MAX_VALUE)
+				return EntityStorage.super.readBuffer(key);
+			try {
+				ByteBuffer buffer = location.segment.map(end).duplicate();
+				buffer.limit((int)end).position((int)location.dataOffset);
+				return buffer.slice();
+			}
+			catch (ClosedChannelException e) {
+				if (closed || index.get(key) == location)
+					throw e;
+			}
+		}
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Sets whether loads read records from memory mappings of the segments,
+	 * which are shared with the operating system's page cache, rather than
+	 * copying them into the heap.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	@Override
+	public void write(String key, byte[] data) throws IOException {
+		lock.lock();
+		try {
+			checkOpen();
+			discard(index.put(key, append(key, data)));
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		lock.lock();
+		try {
+			checkOpen();
+			Location location = index.remove(key);
+			if (location != null) {
+				discard(location);
+				discard(append(key, null));
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void rename(String oldKey, String newKey) throws IOException {
+		lock.lock();
+		try {
+			byte[] data = read(oldKey);
+			if (data == null)
+				throw new IOException("No entity with key " + oldKey);
+			write(newKey, data);
+			delete(oldKey);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Set<String> keys() {
+		return keys;
+	}
+
+	// Appends a record, or a tombstone if data is null, to the active
+	// segment. The lock must be held.
+	private Location append(String key, byte[] data) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int dataLength = data != null ? data.length : TOMBSTONE;
+		int length = HEADER_SIZE + keyBytes.length + (data != null ? data.length : 0);
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(crc(keyBytes.length, dataLength, keyBytes, data));
+		buffer.putInt(keyBytes.length);
+		buffer.putInt(dataLength);
+		buffer.put(keyBytes);
+		if (data != null)
+			buffer.put(data);
+		buffer.flip();
+		Segment segment = active;
+		if (segment.size > 0 && segment.size + length > segmentSize) {
+			newSegment(segment.id + 1);
+			segment = active;
+			compactor.execute(this::compactSegments);
+		}
+		long offset = segment.size;
+		while (buffer.hasRemaining())
+			segment.channel.write(buffer, offset + buffer.position());
+		segment.size += length;
+		return new Location(segment, offset, length, offset + HEADER_SIZE + keyBytes.length, data != null ? data.length : 0);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+	}
+
+	/** Compacts every segment other than the newest in which at least half of the bytes are garbage. */
+	public synchronized void compact() throws IOException {
+		for (Segment segment : segments.values()) {
+			if (closed)
+				return;
+			if (segment != active && segment.garbage.get() * 2 >= segment.size)
+				compact(segment);
+		}
+	}
+
+	private void compactSegments() {
+		try {
+			compact();
+		}
+		catch (IOException e) {
+			// The segment is left in place and retried after the next roll
+		}
+	}
+
+	private void compact(Segment segment) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+			long offset = 0;
+			while (offset < segment.size) {
+				in.readInt();
+				int keyLength = in.readInt();
+				int dataLength = in.readInt();
+				byte[] keyBytes = new byte[keyLength];
+				in.readFully(keyBytes);
+				byte[] data = dataLength > 0 ? new byte[dataLength] : dataLength == 0 ? new byte[0] : null;
+				if (data != null)
+					in.readFully(data);
+				String key = new String(keyBytes, StandardCharsets.UTF_8);
+				lock.lock();
+				try {
+					if (closed)
+						return;
+					if (data != null) {
+						// Copy the record only if it is still the latest for its key
+						Location location = index.get(key);
+						if (location != null && location.segment == segment && location.offset == offset)
+							index.put(key, append(key, data));
+					}
+					else if (!index.containsKey(key) && segments.lowerKey(segment.id) != null) {
+						// An older segment may still hold a record that the
+						// tombstone deletes
+						discard(append(key, null));
+					}
+				}
+				finally {
+					lock.unlock();
+				}
+				offset += HEADER_SIZE + keyLength + Math.max(dataLength, 0);
+			}
+		}
+		// The copied records must be on disk before the only other copy of
+		// them is deleted
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			active.channel.force(false);
+		}
+		finally {
+			lock.unlock();
+		}
+		segments.remove(segment.id);
+		segment.channel.close();
+		if (!segment.file.delete())
+			throw new IOException("Failed to delete " + segment.file);
+	}
+
+	/** Forces all writes to disk. */
+	public void sync() throws IOException {
+		lock.lock();
+		try {
+			checkOpen();
+			active.channel.force(false);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("LogStorage is closed");
+	}
+
+	/** Stops compaction, forces all writes to disk and closes the segments. */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+		}
+		finally {
+			lock.unlock();
+		}
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		active.channel.force(false);
+		for (Segment segment : segments.values())
+			segment.channel.close();
+	}
+}
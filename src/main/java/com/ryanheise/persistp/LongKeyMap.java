@@ -0,0 +1,224 @@
+package com.ryanheise.persistp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * A map from string keys to values for maps whose keys are numeric ids. Keys
+ * that are canonical decimal longs ("42" but not "042" or "+42") are stored
+ * as primitives in an open-addressing table with linear probing, so that
+ * they cost no String or node objects. Any other key is kept in a HashMap,
+ * since converting it to a number and back would not give the same key.
+ * This is not thread-safe, except that {@link #getOptimistic} may race with
+ * writers.
+ */
+final class LongKeyMap<V> {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys = new long[MIN_CAPACITY];
+	// A null value marks an empty slot
+	private Object[] values = new Object[MIN_CAPACITY];
+	private int size;
+	private Map<String, V> others;
+
+	/** Returns whether the characters from start to end are a long in its canonical decimal form. */
+	static boolean isCanonical(String s, int start, int end) {
+		boolean negative = start < end && s.charAt(start) == '-';
+		int digits = negative ? start + 1 : start;
+		int length = end - digits;
+		if (length < 1 || length > 19)
+			return false;
+		if (s.charAt(digits) == '0')
+			return length == 1 && !negative;
+		for (int i = digits; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		if (length < 19)
+			return true;
+		String limit = negative ? "9223372036854775808" : "9223372036854775807";
+		for (int i = 0; i < 19; i++) {
+			char c = s.charAt(digits + i);
+			char l = limit.charAt(i);
+			if (c != l)
+				return c < l;
+		}
+		return true;
+	}
+
+	static boolean isCanonical(String s) {
+		return isCanonical(s, 0, s.length());
+	}
+
+	/** Parses a long whose canonical form is from start to end, without allocating a substring. */
+	static long parse(String s, int start, int end) {
+		boolean negative = s.charAt(start) == '-';
+		long result = 0;
+		// Accumulated negatively so that Long.MIN_VALUE can be represented
+		for (int i = negative ? start + 1 : start; i < end; i++)
+			result = result * 10 - (s.charAt(i) - '0');
+		return negative ? result : -result;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	int size() {
+		return size + (others != null ? others.size() : 0);
+	}
+
+	V get(long key) {
+		int mask = values.length - 1;
+		for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return (V)values[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the value of a numeric key like {@link #get(long)}, but may be
+	 * called while another thread writes the map, as the optimistic read of
+	 * a {@link java.util.concurrent.locks.StampedLock}. Its result means
+	 * nothing unless the read is then validated, but it always returns
+	 * without throwing, as the tables are read once and every probe stays
+	 * within both of them.
+	 */
+	V getOptimistic(long key) {
+		long[] keys = this.keys;
+		Object[] values = this.values;
+		int mask = Math.min(keys.length, values.length) - 1;
+		int i = hash(key) & mask;
+		for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+			Object value = values[i];
+			if (value == null)
+				return null;
+			if (keys[i] == key)
+				return (V)value;
+		}
+		return null;
+	}
+
+	V get(String key) {
+		if (isCanonical(key))
+			return get(Long.parseLong(key));
+		return others != null ? others.get(key) : null;
+	}
+
+	V put(long key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+		int mask = values.length - 1;
+		int i = hash(key) & mask;
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V)values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		// Kept at most 3/4 full so that probes stay short
+		if (++size > values.length * 3 / 4)
+			resize(values.length * 2);
+		return null;
+	}
+
+	V put(String key, V value) {
+		if (isCanonical(key))
+			return put(Long.parseLong(key), value);
+		if (others == null)
+			others = new HashMap<String, V>();
+		return others.put(key, value);
+	}
+
+	V remove(long key) {
+		int mask = values.length - 1;
+		int i = hash(key) & mask;
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				break;
+		}
+		V old = (V)values[i];
+		if (old == null)
+			return null;
+		// Shift back the following entries that probed past the removed slot,
+		// which leaves no tombstones
+		int hole = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			if (((j - hash(keys[j])) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		values[hole] = null;
+		size--;
+		return old;
+	}
+
+	V remove(String key) {
+		if (isCanonical(key))
+			return remove(Long.parseLong(key));
+		return others != null ? others.remove(key) : null;
+	}
+
+	void clear() {
+		keys = new long[MIN_CAPACITY];
+		values = new Object[MIN_CAPACITY];
+		size = 0;
+		others = null;
+	}
+
+	/** Passes each entry to the action, converting the numeric keys to strings. */
+	void forEach(BiConsumer<String, ? super V> action) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				action.accept(Long.toString(keys[i]), (V)values[i]);
+		}
+		if (others != null)
+			others.forEach(action);
+	}
+
+	/**
+	 * Passes each numeric key to the first action and every other key to
+	 * the second, without converting the numeric keys to strings.
+	 */
+	void forEachKey(LongConsumer numeric, Consumer<String> other) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				numeric.accept(keys[i]);
+		}
+		if (others != null)
+			others.keySet().forEach(other);
+	}
+
+	/** Returns the number of numeric keys, which are not counted by others. */
+	int numericSize() {
+		return size;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == null)
+				continue;
+			int j = hash(oldKeys[i]) & mask;
+			while (values[j] != null)
+				j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+}
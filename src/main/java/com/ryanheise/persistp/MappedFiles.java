@@ -0,0 +1,76 @@
+package com.ryanheise.persistp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory mappings of entity files, reused while a file's size and
+ * modification time are unchanged. The least recently used mappings are
+ * dropped beyond a limit, and are unmapped when garbage collected.
+ */
+final class MappedFiles {
+	private static final int MAX_MAPPINGS = 4096;
+	private static final Map<File, Mapping> mappings = new LinkedHashMap<File, Mapping>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, Mapping> eldest) {
+			return size() > MAX_MAPPINGS;
+		}
+	};
+
+	private static final class Mapping {
+		final MappedByteBuffer buffer;
+		final long size;
+		final FileTime modified;
+
+		Mapping(MappedByteBuffer buffer, long size, FileTime modified) {
+			this.buffer = buffer;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	private MappedFiles() {
+	}
+
+	/** Returns a buffer over the contents of the file. */
+	static ByteBuffer map(File file) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		}
+		catch (NoSuchFileException e) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		synchronized (mappings) {
+			Mapping mapping = mappings.get(file);
+			if (mapping != null && mapping.size == attributes.size() && mapping.modified.equals(attributes.lastModifiedTime()))
+				return mapping.buffer.duplicate();
+		}
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size());
+		}
+		synchronized (mappings) {
+			mappings.put(file, new Mapping(buffer, attributes.size(), attributes.lastModifiedTime()));
+		}
+		return buffer.duplicate();
+	}
+
+	/** Drops the mapping of a file that is about to be rewritten or deleted. */
+	static void invalidate(File file) {
+		synchronized (mappings) {
+			mappings.remove(file);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.ryanheise.persistp;
+
+/**
+ * Receives measurements of the work done by PersistP. Set with
+ * {@link EntityMap#setMetrics}. Each measurement names the container of the
+ * entity along with the entity class. A top-level EntityMap is named by its
+ * file pattern, and a child container by its @FPattern under the pattern of
+ * its parent's directory, such as "data/books/&#42;/authors/&#42;.properties",
+ * so that the child containers of every entity in a map are measured
+ * together. Methods are called on the thread doing the
+ * work, so implementations must be thread-safe and fast. Every method does
+ * nothing by default.
+ *
+ * @see MetricsRegistry
+ */
+public interface Metrics {
+	/** Records nothing. This is the default. */
+	Metrics NONE = new Metrics() {
+	};
+
+	/** An entity was loaded from its file or storage. */
+	default void loaded(String container, Class<? extends Entity> entityClass, long nanos) {
+	}
+
+	/** An entity was saved. Saves that found nothing to write are not recorded. */
+	default void saved(String container, Class<? extends Entity> entityClass, long nanos) {
+	}
+
+	default void deleted(String container, Class<? extends Entity> entityClass, long nanos) {
+	}
+
+	/** The serialized data of an entity was read. */
+	default void read(String container, Class<? extends Entity> entityClass, long bytes) {
+	}
+
+	/** The serialized data of an entity was written, or queued or logged for writing. */
+	default void written(String container, Class<? extends Entity> entityClass, long bytes) {
+	}
+
+	default void cacheHit(String container, Class<? extends Entity> entityClass) {
+	}
+
+	default void cacheMiss(String container, Class<? extends Entity> entityClass) {
+	}
+
+	/** A cached entity was evicted by the cache policy or reclaimed by the garbage collector. */
+	default void cacheEviction(String container, Class<? extends Entity> entityClass) {
+	}
+
+	/** The keys of an EntityMap were listed from its directory or archive. */
+	default void scanned(String container, Class<? extends Entity> entityClass, long nanos) {
+	}
+}
@@ -0,0 +1,423 @@
+package com.ryanheise.persistp;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Keeps the measurements passed to it in memory, totalled for each container
+ * and for each entity class:
+ *
+ * <pre>
+ * MetricsRegistry metrics = new MetricsRegistry();
+ * EntityMap.setMetrics(metrics);
+ * metrics.registerMBeans();
+ * ...
+ * MetricsRegistry.Group books = metrics.getContainer("data/books/*.properties");
+ * System.out.println(books.getLoads().getPercentileNanos(0.99));
+ * </pre>
+ *
+ * Once registered, each group is visible over JMX as
+ * "com.ryanheise.persistp:type=Container,name=..." or
+ * "com.ryanheise.persistp:type=EntityClass,name=...". Child containers are
+ * named by their declaring pattern rather than their resolved path, so there
+ * is one group for the child maps of every entity in a map, however many of
+ * those entities are used.
+ *
+ * @see Metrics
+ */
+public final class MetricsRegistry implements Metrics {
+	private static final String DOMAIN = "com.ryanheise.persistp";
+
+	private final ConcurrentHashMap<String, Group> containers = new ConcurrentHashMap<String, Group>();
+	private final ConcurrentHashMap<Class<?>, Group> classes = new ConcurrentHashMap<Class<?>, Group>();
+	private volatile MBeanServer server;
+
+	/**
+	 * A count of timed operations with a histogram of their durations in
+	 * power of two buckets.
+	 */
+	public static final class Timer {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+		// Bucket i counts the durations below 2^i nanoseconds and not in a lower bucket
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+			buckets.incrementAndGet(Math.min(63, 64 - Long.numberOfLeadingZeros(nanos)));
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.sum();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public double getMeanNanos() {
+			long count = getCount();
+			return count == 0 ? 0 : (double)getTotalNanos() / count;
+		}
+
+		/**
+		 * Returns an upper bound on the given fraction of the durations,
+		 * which is at most twice the actual percentile.
+		 */
+		public long getPercentileNanos(double fraction) {
+			long total = 0;
+			for (int i = 0; i < 64; i++)
+				total += buckets.get(i);
+			long rank = (long)Math.ceil(fraction * total);
+			long seen = 0;
+			for (int i = 0; i < 64; i++) {
+				seen += buckets.get(i);
+				if (seen > 0 && seen >= rank)
+					return Math.min(i == 63 ? Long.MAX_VALUE : (1L << i) - 1, getMaxNanos());
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "Timer[count=" + getCount() + ", mean=" + (long)getMeanNanos() + "ns, p99=" + getPercentileNanos(0.99) + "ns, max=" + getMaxNanos() + "ns]";
+		}
+	}
+
+	/** The measurements of one container or entity class. */
+	public static final class Group implements DynamicMBean {
+		private static final String[] TIMERS = { "Load", "Save", "Delete", "Scan" };
+		private static final String[] COUNTERS = { "BytesRead", "BytesWritten", "CacheHits", "CacheMisses", "CacheEvictions" };
+
+		private final String name;
+		private final ObjectName objectName;
+		private final Timer loads = new Timer();
+		private final Timer saves = new Timer();
+		private final Timer deletes = new Timer();
+		private final Timer scans = new Timer();
+		private final LongAdder bytesRead = new LongAdder();
+		private final LongAdder bytesWritten = new LongAdder();
+		private final LongAdder cacheHits = new LongAdder();
+		private final LongAdder cacheMisses = new LongAdder();
+		private final LongAdder cacheEvictions = new LongAdder();
+
+		Group(String type, String name) {
+			this.name = name;
+			try {
+				objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			}
+			catch (JMException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		/** Returns the file pattern of the container or the name of the entity class. */
+		public String getName() {
+			return name;
+		}
+
+		public Timer getLoads() {
+			return loads;
+		}
+
+		public Timer getSaves() {
+			return saves;
+		}
+
+		public Timer getDeletes() {
+			return deletes;
+		}
+
+		public Timer getScans() {
+			return scans;
+		}
+
+		public long getBytesRead() {
+			return bytesRead.sum();
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten.sum();
+		}
+
+		public long getCacheHits() {
+			return cacheHits.sum();
+		}
+
+		public long getCacheMisses() {
+			return cacheMisses.sum();
+		}
+
+		public long getCacheEvictions() {
+			return cacheEvictions.sum();
+		}
+
+		private Timer timer(String name) {
+			switch (name) {
+			case "Load":
+				return loads;
+			case "Save":
+				return saves;
+			case "Delete":
+				return deletes;
+			case "Scan":
+				return scans;
+			default:
+				return null;
+			}
+		}
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			switch (attribute) {
+			case "BytesRead":
+				return getBytesRead();
+			case "BytesWritten":
+				return getBytesWritten();
+			case "CacheHits":
+				return getCacheHits();
+			case "CacheMisses":
+				return getCacheMisses();
+			case "CacheEvictions":
+				return getCacheEvictions();
+			}
+			// <Timer>Count, <Timer>MeanMillis, <Timer>P50Millis, <Timer>P99Millis, <Timer>MaxMillis
+			for (String prefix : TIMERS) {
+				if (!attribute.startsWith(prefix))
+					continue;
+				Timer timer = timer(prefix);
+				switch (attribute.substring(prefix.length())) {
+				case "Count":
+					return timer.getCount();
+				case "MeanMillis":
+					return timer.getMeanNanos() / 1e6;
+				case "P50Millis":
+					return timer.getPercentileNanos(0.5) / 1e6;
+				case "P99Millis":
+					return timer.getPercentileNanos(0.99) / 1e6;
+				case "MaxMillis":
+					return timer.getMaxNanos() / 1e6;
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				}
+				catch (AttributeNotFoundException e) {
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (String timer : TIMERS) {
+				attributes.add(new MBeanAttributeInfo(timer + "Count", "long", timer + " count", true, false, false));
+				for (String stat : new String[] { "MeanMillis", "P50Millis", "P99Millis", "MaxMillis" })
+					attributes.add(new MBeanAttributeInfo(timer + stat, "double", timer + " duration", true, false, false));
+			}
+			for (String counter : COUNTERS)
+				attributes.add(new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+			return new MBeanInfo(Group.class.getName(), "PersistP metrics for " + name, attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+
+		@Override
+		public String toString() {
+			return "Group[" + name + ", loads=" + loads + ", saves=" + saves + ", deletes=" + deletes + ", scans=" + scans
+				+ ", bytesRead=" + getBytesRead() + ", bytesWritten=" + getBytesWritten()
+				+ ", cacheHits=" + getCacheHits() + ", cacheMisses=" + getCacheMisses() + ", cacheEvictions=" + getCacheEvictions() + "]";
+		}
+	}
+
+	/** Returns the measurements of the container with the given name, as described by {@link Metrics}, or null if there are none. */
+	public Group getContainer(String container) {
+		return containers.get(container);
+	}
+
+	/** Returns the measurements of the entity class, or null if there are none. */
+	public Group getEntityClass(Class<? extends Entity> entityClass) {
+		return classes.get(entityClass);
+	}
+
+	public Collection<Group> getContainers() {
+		return Collections.unmodifiableCollection(containers.values());
+	}
+
+	public Collection<Group> getEntityClasses() {
+		return Collections.unmodifiableCollection(classes.values());
+	}
+
+	/**
+	 * Registers every group, including those created later, with the
+	 * platform MBean server.
+	 */
+	public synchronized void registerMBeans() {
+		if (server != null)
+			return;
+		server = ManagementFactory.getPlatformMBeanServer();
+		for (Group group : containers.values())
+			register(group);
+		for (Group group : classes.values())
+			register(group);
+	}
+
+	public synchronized void unregisterMBeans() {
+		MBeanServer server = this.server;
+		if (server == null)
+			return;
+		this.server = null;
+		for (Group group : containers.values())
+			unregister(server, group);
+		for (Group group : classes.values())
+			unregister(server, group);
+	}
+
+	private void register(Group group) {
+		MBeanServer server = this.server;
+		if (server == null)
+			return;
+		try {
+			server.registerMBean(group, group.objectName);
+		}
+		catch (JMException e) {
+			// Another registry has registered the same name
+		}
+	}
+
+	private static void unregister(MBeanServer server, Group group) {
+		try {
+			server.unregisterMBean(group.objectName);
+		}
+		catch (JMException e) {
+		}
+	}
+
+	private Group container(String container) {
+		Group group = containers.get(container);
+		if (group == null) {
+			Group created = new Group("Container", container);
+			group = containers.putIfAbsent(container, created);
+			if (group == null) {
+				group = created;
+				register(group);
+			}
+		}
+		return group;
+	}
+
+	private Group entityClass(Class<? extends Entity> entityClass) {
+		Group group = classes.get(entityClass);
+		if (group == null) {
+			Group created = new Group("EntityClass", entityClass.getName());
+			group = classes.putIfAbsent(entityClass, created);
+			if (group == null) {
+				group = created;
+				register(group);
+			}
+		}
+		return group;
+	}
+
+	@Override
+	public void loaded(String container, Class<? extends Entity> entityClass, long nanos) {
+		container(container).loads.record(nanos);
+		entityClass(entityClass).loads.record(nanos);
+	}
+
+	@Override
+	public void saved(String container, Class<? extends Entity> entityClass, long nanos) {
+		container(container).saves.record(nanos);
+		entityClass(entityClass).saves.record(nanos);
+	}
+
+	@Override
+	public void deleted(String container, Class<? extends Entity> entityClass, long nanos) {
+		container(container).deletes.record(nanos);
+		entityClass(entityClass).deletes.record(nanos);
+	}
+
+	@Override
+	public void read(String container, Class<? extends Entity> entityClass, long bytes) {
+		container(container).bytesRead.add(bytes);
+		entityClass(entityClass).bytesRead.add(bytes);
+	}
+
+	@Override
+	public void written(String container, Class<? extends Entity> entityClass, long bytes) {
+		container(container).bytesWritten.add(bytes);
+		entityClass(entityClass).bytesWritten.add(bytes);
+	}
+
+	@Override
+	public void cacheHit(String container, Class<? extends Entity> entityClass) {
+		container(container).cacheHits.increment();
+		entityClass(entityClass).cacheHits.increment();
+	}
+
+	@Override
+	public void cacheMiss(String container, Class<? extends Entity> entityClass) {
+		container(container).cacheMisses.increment();
+		entityClass(entityClass).cacheMisses.increment();
+	}
+
+	@Override
+	public void cacheEviction(String container, Class<? extends Entity> entityClass) {
+		container(container).cacheEvictions.increment();
+		entityClass(entityClass).cacheEvictions.increment();
+	}
+
+	@Override
+	public void scanned(String container, Class<? extends Entity> entityClass, long nanos) {
+		container(container).scans.record(nanos);
+		entityClass(entityClass).scans.record(nanos);
+	}
+}
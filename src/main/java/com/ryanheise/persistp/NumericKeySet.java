@@ -0,0 +1,128 @@
+package com.ryanheise.persistp;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The key index of an EntityMap whose entities have int or long keys, stored
+ * in a {@link LongKeyMap}. This is thread-safe, and looks up numeric keys
+ * with the optimistic reads of {@link EntityCache#read}. It iterates over a
+ * snapshot of the keys taken when the iterator is created, in which numeric
+ * keys are kept as primitives, so that each key's String is only created
+ * when the iterator returns it.
+ */
+final class NumericKeySet extends AbstractSet<String> {
+	private final StampedLock lock = new StampedLock();
+	private final LongKeyMap<Boolean> keys = new LongKeyMap<Boolean>();
+
+	boolean contains(long key) {
+		return EntityCache.read(lock, keys, key) != null;
+	}
+
+	@Override
+	public boolean contains(Object key) {
+		if (!(key instanceof String))
+			return false;
+		return EntityCache.read(lock, keys, (String)key) != null;
+	}
+
+	boolean add(long key) {
+		long stamp = lock.writeLock();
+		try {
+			return keys.put(key, Boolean.TRUE) == null;
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public boolean add(String key) {
+		long stamp = lock.writeLock();
+		try {
+			return keys.put(key, Boolean.TRUE) == null;
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public boolean remove(Object key) {
+		if (!(key instanceof String))
+			return false;
+		long stamp = lock.writeLock();
+		try {
+			return keys.remove((String)key) != null;
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			keys.clear();
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return keys.size();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		long[] numeric;
+		List<String> others = new ArrayList<String>();
+		long stamp = lock.readLock();
+		try {
+			numeric = new long[keys.numericSize()];
+			int[] count = new int[1];
+			keys.forEachKey(key -> numeric[count[0]++] = key, others::add);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+		return new Iterator<String>() {
+			private int index;
+			private String last;
+
+			@Override
+			public boolean hasNext() {
+				return index < numeric.length + others.size();
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				int i = index++;
+				return last = i < numeric.length ? Long.toString(numeric[i]) : others.get(i - numeric.length);
+			}
+
+			@Override
+			public void remove() {
+				if (last == null)
+					throw new IllegalStateException();
+				NumericKeySet.this.remove(last);
+				last = null;
+			}
+		};
+	}
+}
@@ -2,12 +2,17 @@ package com.ryanheise.persistp;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class One<X extends Entity> implements EntityContainer<X> {
 	private Entity parent;
 	private Class<X> entityClass;
 	private File filePattern;
-	private X entity;
+	private volatile String metricsName;
+	private volatile X entity;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final FileStorage storage = new FileStorage(this);
 
 	public One(Entity parent, Class<X> entityClass, File filePattern) {
 		this.parent = parent;
@@ -65,17 +70,45 @@ public class One<X extends Entity> implements EntityContainer<X> {
 			entity.rebind();
 	}
 
+	// The name of this container in Metrics
+	String metricsName() {
+		String metricsName = this.metricsName;
+		if (metricsName != null)
+			return metricsName;
+		return filePattern != null ? filePattern.getPath() : "";
+	}
+
+	void setMetricsName(String metricsName) {
+		this.metricsName = metricsName;
+	}
+
+	// The entity's file, which is read and written like that of a map entity
+	FileStorage storage() {
+		return storage;
+	}
+
+	/** Returns a future of the entity, which is complete already if the entity is loaded. */
+	public CompletableFuture<X> getAsync() {
+		X entity = this.entity;
+		if (entity != null)
+			return CompletableFuture.completedFuture(entity);
+		return Async.supply(this::get);
+	}
+
 	public X get() {
+		X entity = this.entity;
+		if (entity != null)
+			return entity;
+		lock.lock();
 		try {
-			if (entity == null) {
-				File file = filePattern;
-				if (file.exists()) {
-					X entity = entityClass.newInstance();
+			if (this.entity == null) {
+				if (storage.exists(null)) {
+					entity = entityClass.newInstance();
 					entity.load(this);
 					this.entity = entity;
 				}
 			}
-			return entity;
+			return this.entity;
 		}
 		catch (RuntimeException e) {
 			throw e;
@@ -83,5 +116,8 @@ public class One<X extends Entity> implements EntityContainer<X> {
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
+		finally {
+			lock.unlock();
+		}
 	}
 }
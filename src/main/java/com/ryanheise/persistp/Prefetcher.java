@@ -0,0 +1,75 @@
+package com.ryanheise.persistp;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the entities following the one being accessed in a list of keys in
+ * the background, so that sequential access overlaps the file reads of the
+ * next entities with the caller's work on the current one. A prefetcher is
+ * used by a single thread, as each iterator of a map or list has its own.
+ *
+ * @see EntityMap#setPrefetch(int)
+ */
+final class Prefetcher<X extends Entity> {
+	// Shared by every prefetcher, and sized for I/O rather than CPU
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(16, 16, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+		Thread thread = new Thread(r, "persistp-prefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private final EntityMap<X> map;
+	private final Map<String, CompletableFuture<X>> pending = new HashMap<String, CompletableFuture<X>>();
+	private int last = -1;
+	// The index of the first key not yet submitted
+	private int next;
+
+	Prefetcher(EntityMap<X> map) {
+		this.map = map;
+	}
+
+	/** Returns the entity of the key at the index, loading ahead the keys after it. */
+	X get(List<String> keys, int index, int window) {
+		// Reading the same element again leaves the window as it is
+		if (index == last)
+			return map.lazyGet(keys.get(index));
+		if (index != last + 1) {
+			// Not sequential, so what was loaded ahead will not be used
+			for (CompletableFuture<X> future : pending.values())
+				future.cancel(false);
+			pending.clear();
+			next = index + 1;
+		}
+		last = index;
+		int end = Math.min(index + window, keys.size() - 1);
+		for (int i = Math.max(next, index + 1); i <= end; i++)
+			pending.computeIfAbsent(keys.get(i), key -> CompletableFuture.supplyAsync(() -> map.lazyGet(key), executor));
+		next = Math.max(next, end + 1);
+		CompletableFuture<X> future = pending.remove(keys.get(index));
+		if (future == null)
+			return map.lazyGet(keys.get(index));
+		try {
+			return future.join();
+		}
+		catch (CancellationException e) {
+			return map.lazyGet(keys.get(index));
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package com.ryanheise.persistp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Reads and writes the .properties format without java.util.Properties.
+ * Reading follows the rules of Properties.load(InputStream), and writing
+ * produces the bytes that Properties.store would with the entries sorted by
+ * key and without the timestamp comment. Lines are assembled in a buffer
+ * that is reused by each thread.
+ */
+final class PropertiesCodec {
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+	private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+	private static final class Buffers {
+		char[] line = new char[256];
+		byte[] out = new byte[1024];
+		StringBuilder unescaped = new StringBuilder();
+	}
+
+	/** Receives each property as it is read. */
+	interface Handler {
+		void property(String name, String value) throws IOException, ParseException;
+	}
+
+	private PropertiesCodec() {
+	}
+
+	/** Reads the properties in ISO 8859-1 from the remaining bytes of data. */
+	static void read(ByteBuffer data, Handler handler) throws IOException, ParseException {
+		Buffers buffers = PropertiesCodec.buffers.get();
+		int pos = data.position();
+		int limit = data.limit();
+		while (pos < limit) {
+			// Read a logical line, joining continuation lines
+			char[] line = buffers.line;
+			int len = 0;
+			boolean skipWhiteSpace = true;
+			boolean appendedLineBegin = false;
+			boolean precedingBackslash = false;
+			while (true) {
+				if (pos >= limit) {
+					if (len == 0)
+						return;
+					if (precedingBackslash)
+						len--;
+					break;
+				}
+				char c = (char)(data.get(pos++) & 0xFF);
+				if (skipWhiteSpace) {
+					if (c == ' ' || c == '\t' || c == '\f')
+						continue;
+					if (!appendedLineBegin && (c == '\r' || c == '\n'))
+						continue;
+					skipWhiteSpace = false;
+					appendedLineBegin = false;
+				}
+				if (len == 0 && (c == '#' || c == '!')) {
+					// Skip the comment up to the end of the line
+					while (pos < limit && c != '\r' && c != '\n')
+						c = (char)data.get(pos++);
+					if (c != '\r' && c != '\n')
+						return;
+					skipWhiteSpace = true;
+					continue;
+				}
+				if (c != '\n' && c != '\r') {
+					if (len == line.length)
+						buffers.line = line = Arrays.copyOf(line, len * 2);
+					line[len++] = c;
+					precedingBackslash = c == '\\' && !precedingBackslash;
+				}
+				else if (len == 0)
+					skipWhiteSpace = true;
+				else if (pos >= limit) {
+					if (precedingBackslash)
+						len--;
+					break;
+				}
+				else if (precedingBackslash) {
+					// The backslash joins the next line, without its leading whitespace
+					len--;
+					skipWhiteSpace = true;
+					appendedLineBegin = true;
+					precedingBackslash = false;
+					if (c == '\r' && data.get(pos) == '\n')
+						pos++;
+				}
+				else
+					break;
+			}
+			readProperty(line, len, buffers.unescaped, handler);
+		}
+	}
+
+	private static void readProperty(char[] line, int len, StringBuilder out, Handler handler) throws IOException, ParseException {
+		int keyLen = 0;
+		int valueStart = len;
+		boolean hasSep = false;
+		boolean precedingBackslash = false;
+		while (keyLen < len) {
+			char c = line[keyLen];
+			if ((c == '=' || c == ':') && !precedingBackslash) {
+				valueStart = keyLen + 1;
+				hasSep = true;
+				break;
+			}
+			else if ((c == ' ' || c == '\t' || c == '\f') && !precedingBackslash) {
+				valueStart = keyLen + 1;
+				break;
+			}
+			precedingBackslash = c == '\\' && !precedingBackslash;
+			keyLen++;
+		}
+		while (valueStart < len) {
+			char c = line[valueStart];
+			if (c != ' ' && c != '\t' && c != '\f') {
+				if (!hasSep && (c == '=' || c == ':'))
+					hasSep = true;
+				else
+					break;
+			}
+			valueStart++;
+		}
+		handler.property(unescape(line, 0, keyLen, out), unescape(line, valueStart, len - valueStart, out));
+	}
+
+	private static String unescape(char[] in, int off, int len, StringBuilder out) {
+		int end = off + len;
+		int i = off;
+		while (i < end && in[i] != '\\')
+			i++;
+		if (i == end)
+			return new String(in, off, len);
+		out.setLength(0);
+		out.append(in, off, i - off);
+		while (i < end) {
+			char c = in[i++];
+			if (c != '\\') {
+				out.append(c);
+				continue;
+			}
+			if (i == end)
+				break;
+			c = in[i++];
+			if (c == 'u') {
+				if (end - i < 4)
+					throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+				int value = 0;
+				for (int j = 0; j < 4; j++) {
+					value = (value << 4) | hexDigit(in[i++]);
+				}
+				out.append((char)value);
+			}
+			else if (c == 't')
+				out.append('\t');
+			else if (c == 'r')
+				out.append('\r');
+			else if (c == 'n')
+				out.append('\n');
+			else if (c == 'f')
+				out.append('\f');
+			else
+				out.append(c);
+		}
+		return out.toString();
+	}
+
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+	}
+
+	/** Writes the properties sorted by name. */
+	static byte[] write(Map<String, String> props) {
+		String[] names = props.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		Buffers buffers = PropertiesCodec.buffers.get();
+		int size = 0;
+		for (String name : names) {
+			String value = props.get(name);
+			// Each char is escaped to at most 6 bytes
+			int max = size + (name.length() + value.length()) * 6 + 1 + LINE_SEPARATOR.length;
+			if (max > buffers.out.length)
+				buffers.out = Arrays.copyOf(buffers.out, Math.max(max, buffers.out.length * 2));
+			byte[] out = buffers.out;
+			size = escape(name, true, out, size);
+			out[size++] = '=';
+			size = escape(value, false, out, size);
+			for (byte b : LINE_SEPARATOR)
+				out[size++] = b;
+		}
+		return Arrays.copyOf(buffers.out, size);
+	}
+
+	private static int escape(String s, boolean escapeSpace, byte[] out, int size) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c > 61 && c < 127) {
+				if (c == '\\')
+					out[size++] = '\\';
+				out[size++] = (byte)c;
+				continue;
+			}
+			switch (c) {
+			case ' ':
+				if (i == 0 || escapeSpace)
+					out[size++] = '\\';
+				out[size++] = ' ';
+				break;
+			case '\t':
+				out[size++] = '\\';
+				out[size++] = 't';
+				break;
+			case '\n':
+				out[size++] = '\\';
+				out[size++] = 'n';
+				break;
+			case '\r':
+				out[size++] = '\\';
+				out[size++] = 'r';
+				break;
+			case '\f':
+				out[size++] = '\\';
+				out[size++] = 'f';
+				break;
+			case '=':
+			case ':':
+			case '#':
+			case '!':
+				out[size++] = '\\';
+				out[size++] = (byte)c;
+				break;
+			default:
+				if (c < 0x20 || c > 0x7E) {
+					out[size++] = '\\';
+					out[size++] = 'u';
+					out[size++] = (byte)HEX[(c >> 12) & 0xF];
+					out[size++] = (byte)HEX[(c >> 8) & 0xF];
+					out[size++] = (byte)HEX[(c >> 4) & 0xF];
+					out[size++] = (byte)HEX[c & 0xF];
+				}
+				else
+					out[size++] = (byte)c;
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,252 @@
+package com.ryanheise.persistp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A group of saves, deletes and rekeys that are written to disk together or
+ * not at all. A transaction is begun with {@link TransactionLog#begin()} and
+ * applies to the entities saved, deleted or rekeyed by the thread that began
+ * it until it is committed or rolled back:
+ *
+ * <pre>
+ * try (Transaction tx = log.begin()) {
+ *     author.saveAndAdd(book.authors);
+ *     oldAuthor.delete();
+ *     tx.commit();
+ * }
+ * </pre>
+ *
+ * Until the commit, changes are made only in memory, and the files the
+ * transaction writes are read back from it by the same thread. Rolling back
+ * discards the cached entities and keys that the transaction changed so that
+ * they are reloaded from disk, restores the elements of the lists it changed,
+ * and leaves the entities it saved to be written again by their next save.
+ * Entities in maps with an {@link EntityStorage} cannot be modified in a
+ * transaction.
+ */
+public final class Transaction implements Closeable {
+	private static final ThreadLocal<Transaction> current = new ThreadLocal<Transaction>();
+
+	static final int WRITE = 1;
+	static final int DELETE = 2;
+	static final int RENAME = 3;
+	static final int MKDIRS = 4;
+
+	private final TransactionLog log;
+	private final List<Op> ops = new ArrayList<Op>();
+	// The data written by this transaction, by file
+	private final Map<File, byte[]> written = new HashMap<File, byte[]>();
+	// The keys changed in each storage, which are reloaded on rollback
+	private final Map<FileStorage, Set<String>> changed = new HashMap<FileStorage, Set<String>>();
+	// Whether the file of each key this transaction adds or removes exists
+	// once it is applied, by storage. Only this transaction's thread sees
+	// these keys until then.
+	private final Map<FileStorage, Map<String, Boolean>> keys = new HashMap<FileStorage, Map<String, Boolean>>();
+	// Restore the entities and lists changed by this transaction to their
+	// state before it, by identity
+	private final Map<Object, Runnable> restorers = new IdentityHashMap<Object, Runnable>();
+	private boolean active = true;
+
+	static final class Op {
+		final int type;
+		final File file;
+		final File target;
+		final byte[] data;
+		final FileStorage storage;
+		final String key;
+		// The key a rename moves from, or null
+		final String oldKey;
+		final WriteBehind writeBehind;
+
+		Op(int type, File file, File target, byte[] data, FileStorage storage, String key, String oldKey, WriteBehind writeBehind) {
+			this.type = type;
+			this.file = file;
+			this.target = target;
+			this.data = data;
+			this.storage = storage;
+			this.key = key;
+			this.oldKey = oldKey;
+			this.writeBehind = writeBehind;
+		}
+	}
+
+	Transaction(TransactionLog log) {
+		if (current.get() != null)
+			throw new IllegalStateException("A transaction is already active on this thread");
+		this.log = log;
+		current.set(this);
+	}
+
+	/** Returns the transaction active on the current thread, or null. */
+	static Transaction current() {
+		return current.get();
+	}
+
+	void write(File file, byte[] data, FileStorage storage, String key, WriteBehind writeBehind) {
+		ops.add(new Op(WRITE, file, null, data, storage, key, null, writeBehind));
+		written.put(file, data);
+		changed(storage, key);
+		keyChanged(storage, key, true);
+	}
+
+	void mkdirs(File directory, FileStorage storage, String key) {
+		ops.add(new Op(MKDIRS, directory, null, null, storage, key, null, null));
+		changed(storage, key);
+		keyChanged(storage, key, true);
+	}
+
+	void delete(File file, FileStorage storage, String key, WriteBehind writeBehind) {
+		ops.add(new Op(DELETE, file, null, null, storage, key, null, writeBehind));
+		written.remove(file);
+		changed(storage, key);
+		keyChanged(storage, key, false);
+	}
+
+	void rename(File file, File target, FileStorage storage, String oldKey, String newKey) {
+		// A chain of renames could not be replayed safely after a crash
+		for (Op op : ops) {
+			if (op.type == RENAME && op.target.equals(file))
+				throw new IllegalStateException("Cannot rekey " + file + " twice in one transaction");
+		}
+		ops.add(new Op(RENAME, file, target, null, storage, newKey, oldKey, null));
+		changed(storage, oldKey);
+		changed(storage, newKey);
+		keyChanged(storage, oldKey, false);
+		keyChanged(storage, newKey, true);
+		// Files written under the old location move with it
+		String prefix = file.getPath() + File.separator;
+		Map<File, byte[]> moved = new HashMap<File, byte[]>();
+		for (Iterator<Map.Entry<File, byte[]>> i = written.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<File, byte[]> e = i.next();
+			String path = e.getKey().getPath();
+			if (path.equals(file.getPath()) || path.startsWith(prefix)) {
+				moved.put(new File(target.getPath() + path.substring(file.getPath().length())), e.getValue());
+				i.remove();
+			}
+		}
+		written.putAll(moved);
+	}
+
+	private void changed(FileStorage storage, String key) {
+		changed.computeIfAbsent(storage, s -> new HashSet<String>()).add(key);
+	}
+
+	private void keyChanged(FileStorage storage, String key, boolean exists) {
+		keys.computeIfAbsent(storage, s -> new HashMap<String, Boolean>()).put(key, exists);
+	}
+
+	/**
+	 * Returns whether the file of the key exists once this transaction is
+	 * applied, or null if the transaction does not add or remove it.
+	 */
+	Boolean exists(FileStorage storage, String key) {
+		Map<String, Boolean> keys = this.keys.get(storage);
+		return keys != null ? keys.get(key) : null;
+	}
+
+	/** Returns the keys of the storage as they are once this transaction is applied. */
+	Set<String> keys(FileStorage storage, Set<String> keys) {
+		Map<String, Boolean> changes = this.keys.get(storage);
+		if (changes == null)
+			return keys;
+		Set<String> result = new HashSet<String>(keys);
+		changes.forEach((key, exists) -> {
+			if (exists)
+				result.add(key);
+			else
+				result.remove(key);
+		});
+		return result;
+	}
+
+	// Called before the first change to an entity in this transaction
+	void changing(Entity entity) {
+		restorers.computeIfAbsent(entity, e -> entity.restorer());
+	}
+
+	// Called before the first change to a list in this transaction
+	void changing(EntityList<? extends Entity> list) {
+		restorers.computeIfAbsent(list, l -> list.restorer());
+	}
+
+	/** Returns the data this transaction has written to the file, or null. */
+	byte[] pending(File file) {
+		return written.get(file);
+	}
+
+	/**
+	 * Writes the changes to the log, waits for the log to be forced to disk
+	 * along with any other transactions committed at the same time, and
+	 * applies the changes to the entity files.
+	 */
+	public void commit() throws IOException {
+		end();
+		if (!ops.isEmpty())
+			log.commit(this);
+	}
+
+	/** Discards the changes made in this transaction. */
+	public void rollback() {
+		end();
+		discard();
+	}
+
+	/** Rolls back the transaction if it has not been committed. */
+	@Override
+	public void close() {
+		if (active)
+			rollback();
+	}
+
+	private void end() {
+		if (!active)
+			throw new IllegalStateException("Transaction has already ended");
+		active = false;
+		current.remove();
+	}
+
+	// Called when the transaction is rolled back or fails to commit
+	void discard() {
+		for (Runnable restorer : restorers.values())
+			restorer.run();
+		for (Map.Entry<FileStorage, Set<String>> e : changed.entrySet()) {
+			for (String key : e.getValue())
+				e.getKey().discard(key);
+		}
+	}
+
+	List<Op> ops() {
+		return ops;
+	}
+
+	// Serializes the operations as a log record payload
+	byte[] toRecord() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(ops.size());
+			for (Op op : ops) {
+				out.writeByte(op.type);
+				out.writeUTF(op.file.getPath());
+				if (op.type == RENAME)
+					out.writeUTF(op.target.getPath());
+				else if (op.type == WRITE) {
+					out.writeInt(op.data.length);
+					out.write(op.data);
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,362 @@
+package com.ryanheise.persistp;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log for {@link Transaction}s. Each committed transaction is
+ * appended to the log as one checksummed record, and a background thread
+ * forces the log to disk once for all of the transactions committed while
+ * the previous force was in progress before applying them to the entity
+ * files. Once such a group has been applied, the files it changed are forced
+ * to disk at a checkpoint, after which the log is truncated, so that a
+ * transaction is never replayed over newer saves made outside of one. The
+ * keys a transaction adds or removes join the key index of their map only
+ * once it has been applied.
+ *
+ * When a log is opened, the transactions recorded since the last checkpoint
+ * are applied again, completing any that were interrupted by a crash or
+ * failed to apply. A record torn by a crash while it was being written is
+ * discarded, along with its transaction.
+ */
+public class TransactionLog implements Closeable {
+	// crc, payload length
+	private static final int HEADER_SIZE = 8;
+
+	private final File file;
+	private final FileChannel channel;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition committed = lock.newCondition();
+	private final List<Commit> queue = new ArrayList<Commit>();
+	// Files and directories changed since the last checkpoint
+	private final Set<File> unsynced = new LinkedHashSet<File>();
+	private final Thread committer;
+	private boolean closed;
+	// Whether a committed transaction failed to apply, in which case the log
+	// is kept until it is completed when the log is next opened
+	private boolean incomplete;
+
+	private static final class Commit {
+		final Transaction transaction;
+		final ByteBuffer record;
+		boolean done;
+		IOException error;
+
+		Commit(Transaction transaction, ByteBuffer record) {
+			this.transaction = transaction;
+			this.record = record;
+		}
+	}
+
+	/**
+	 * @param file the log file, which is created if it does not exist.
+	 */
+	public TransactionLog(File file) throws IOException {
+		this.file = file;
+		File directory = file.getAbsoluteFile().getParentFile();
+		directory.mkdirs();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			recover();
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		committer = new Thread(this::run, "persistp-transaction-log");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/** Begins a transaction on the current thread. */
+	public Transaction begin() {
+		lock.lock();
+		try {
+			if (closed)
+				throw new IllegalStateException("TransactionLog is closed");
+		}
+		finally {
+			lock.unlock();
+		}
+		return new Transaction(this);
+	}
+
+	void commit(Transaction transaction) throws IOException {
+		Commit commit;
+		try {
+			commit = new Commit(transaction, record(transaction.toRecord()));
+		}
+		catch (IOException | RuntimeException e) {
+			transaction.discard();
+			throw e;
+		}
+		lock.lock();
+		try {
+			if (closed) {
+				transaction.discard();
+				throw new IllegalStateException("TransactionLog is closed");
+			}
+			queue.add(commit);
+			notEmpty.signal();
+			while (!commit.done)
+				committed.awaitUninterruptibly();
+		}
+		finally {
+			lock.unlock();
+		}
+		if (commit.error != null)
+			throw commit.error;
+	}
+
+	private static ByteBuffer record(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		record.putInt((int)crc.getValue());
+		record.putInt(payload.length);
+		record.put(payload);
+		record.flip();
+		return record;
+	}
+
+	private void run() {
+		while (true) {
+			List<Commit> batch;
+			lock.lock();
+			try {
+				while (queue.isEmpty() && !closed)
+					notEmpty.awaitUninterruptibly();
+				if (queue.isEmpty())
+					return;
+				batch = new ArrayList<Commit>(queue);
+				queue.clear();
+			}
+			finally {
+				lock.unlock();
+			}
+			try {
+				commit(batch);
+			}
+			catch (Throwable e) {
+				// The committers are released whatever happens to the batch
+				for (Commit commit : batch) {
+					if (commit.error == null)
+						commit.error = new IOException("Commit failed", e);
+				}
+			}
+			finally {
+				lock.lock();
+				try {
+					for (Commit commit : batch)
+						commit.done = true;
+					committed.signalAll();
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	private void commit(List<Commit> batch) {
+		long start = -1;
+		try {
+			start = channel.size();
+			for (Commit commit : batch) {
+				while (commit.record.hasRemaining())
+					channel.write(commit.record, channel.size());
+			}
+			channel.force(false);
+		}
+		catch (IOException e) {
+			// None of the batch is committed
+			try {
+				if (start >= 0)
+					channel.truncate(start);
+			}
+			catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			for (Commit commit : batch) {
+				commit.error = e;
+				commit.transaction.discard();
+			}
+			return;
+		}
+		for (Commit commit : batch) {
+			try {
+				for (Transaction.Op op : commit.transaction.ops()) {
+					// Every op changes the map's directory, even a write of an
+					// existing file through its temporary file, and all but a
+					// delete leave the file of the key in place
+					FileTime before = op.storage.directoryModified();
+					apply(op.type, op.file, op.target, op.data, op.writeBehind, false);
+					op.storage.afterFileChange(op.key, op.type != Transaction.DELETE, before);
+					if (op.type == Transaction.RENAME)
+						op.storage.keyRemoved(op.oldKey);
+					if (op.type == Transaction.WRITE)
+						op.storage.written(op.key, op.file);
+				}
+			}
+			catch (IOException e) {
+				// The transaction is committed, and is completed when the log is next opened
+				commit.error = e;
+				incomplete = true;
+			}
+			catch (RuntimeException e) {
+				commit.error = new IOException("Failed to apply a committed transaction", e);
+				incomplete = true;
+			}
+		}
+		try {
+			checkpoint();
+		}
+		catch (IOException e) {
+			for (Commit commit : batch) {
+				if (commit.error == null)
+					commit.error = e;
+			}
+		}
+	}
+
+	private void apply(int type, File file, File target, byte[] data, WriteBehind writeBehind, boolean replaying) throws IOException {
+		if (writeBehind != null)
+			writeBehind.cancel(file);
+		MappedFiles.invalidate(file);
+		switch (type) {
+		case Transaction.WRITE:
+			file.getParentFile().mkdirs();
+			FileStorage.writeFile(file, data);
+			unsynced.add(file);
+			unsynced.add(file.getParentFile());
+			break;
+		case Transaction.MKDIRS:
+			file.mkdirs();
+			unsynced.add(file.getParentFile());
+			break;
+		case Transaction.DELETE:
+			Entity.deleteFile(file);
+			unsynced.add(file.getParentFile());
+			break;
+		case Transaction.RENAME:
+			MappedFiles.invalidate(target);
+			// When replaying, the rename may already have been applied
+			if (!replaying || (file.exists() && !target.exists())) {
+				if (!file.renameTo(target))
+					throw new IOException("Failed to rename " + file + " to " + target);
+			}
+			unsynced.add(file.getParentFile());
+			unsynced.add(target.getParentFile());
+			break;
+		default:
+			throw new IOException("Invalid operation " + type + " in " + this.file);
+		}
+	}
+
+	// Forces the applied changes to disk and truncates the log, unless it
+	// holds a transaction that failed to apply
+	private void checkpoint() throws IOException {
+		for (File changed : unsynced) {
+			if (!changed.exists())
+				continue;
+			try (FileChannel channel = FileChannel.open(changed.toPath(), StandardOpenOption.READ)) {
+				channel.force(true);
+			}
+			catch (IOException e) {
+				// Directories cannot be opened on some platforms
+				if (!changed.isDirectory())
+					throw e;
+			}
+		}
+		unsynced.clear();
+		if (incomplete)
+			return;
+		channel.truncate(0);
+		channel.force(true);
+	}
+
+	private void recover() throws IOException {
+		long size = channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (position + HEADER_SIZE <= size) {
+			header.clear();
+			channel.read(header, position);
+			header.flip();
+			int crc = header.getInt();
+			int length = header.getInt();
+			if (length < 0 || position + HEADER_SIZE + length > size)
+				break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			while (payload.hasRemaining() && channel.read(payload, position + HEADER_SIZE + payload.position()) >= 0);
+			CRC32 check = new CRC32();
+			check.update(payload.array());
+			if ((int)check.getValue() != crc)
+				break;
+			replay(payload.array());
+			position += HEADER_SIZE + length;
+		}
+		checkpoint();
+	}
+
+	private void replay(byte[] payload) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				int type = in.readByte();
+				File file = new File(in.readUTF());
+				File target = null;
+				byte[] data = null;
+				if (type == Transaction.RENAME)
+					target = new File(in.readUTF());
+				else if (type == Transaction.WRITE) {
+					data = new byte[in.readInt()];
+					in.readFully(data);
+				}
+				apply(type, file, target, data, null, true);
+			}
+		}
+	}
+
+	/** Waits for committed transactions to be applied and forced to disk, and stops the background thread. */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			notEmpty.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		try {
+			committer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			checkpoint();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.ryanheise.persistp;
+
+/**
+ * Converts the values of a field type to and from property strings, so that
+ * @Prop fields of that type are loaded and saved without overriding
+ * load() and save():
+ *
+ * <pre>
+ * TypeCodec.register(Money.class, new TypeCodec&lt;Money&gt;() {
+ *     public Money parse(String s) { return Money.parse(s); }
+ *     public String format(Money value) { return value.toString(); }
+ * });
+ * </pre>
+ *
+ * Enums (by constant name), BigDecimal, BigInteger, and the java.time types
+ * Instant, LocalDate, LocalDateTime, LocalTime, OffsetDateTime and
+ * ZonedDateTime are supported without registration. The java.time types use
+ * the pattern of the field's @Temporal annotation if present, and ISO-8601
+ * otherwise. A null value is saved by removing the property, and a missing
+ * or empty property is loaded as null, so codecs never see null.
+ */
+public interface TypeCodec<T> {
+	/**
+	 * Parses a non-empty property value. Malformed values should be reported
+	 * by throwing an unchecked exception, which is rethrown to the caller of
+	 * load() as an IOException.
+	 */
+	T parse(String s);
+
+	/** Formats a non-null field value. */
+	String format(T value);
+
+	/**
+	 * Registers the codec for fields of exactly the given type, replacing
+	 * any earlier codec, including a built-in one. Codecs are resolved
+	 * once per entity class, so a codec must be registered before any
+	 * entity class with a field of that type is first used. The primitive
+	 * types, their wrappers, String, Date, List, and arrays of int, long and
+	 * double are always handled by PersistP and cannot be registered.
+	 */
+	static <T> void register(Class<T> type, TypeCodec<T> codec) {
+		FieldCodec.register(type, codec);
+	}
+}
@@ -0,0 +1,247 @@
+package com.ryanheise.persistp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A write-behind queue for entity saves. When attached to an EntityMap via
+ * {@link EntityMap#setWriteBehind}, saving an existing entity in that map
+ * (or in any of its child containers) only serializes the entity and queues
+ * the write. A background thread writes the queue in batches. Repeated saves
+ * of the same entity before it is written are coalesced into one write.
+ *
+ * The queue is bounded: a save blocks while the queue is full. Call
+ * {@link #flush()} to wait until all queued saves have been written, and
+ * {@link #close()} to flush and stop the background thread.
+ */
+public class WriteBehind implements Closeable {
+	private final int capacity;
+	private final int batchSize;
+	private final long lingerMillis;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Condition written = lock.newCondition();
+	private final LinkedHashMap<File, Write> pending = new LinkedHashMap<File, Write>();
+	private final Map<File, Write> inFlight = new HashMap<File, Write>();
+	private final Thread flusher;
+	private IOException error;
+	private boolean closed;
+	private long seq;
+	private int flushing;
+
+	public WriteBehind() {
+		this(1024, 64, 10);
+	}
+
+	/**
+	 * @param capacity the maximum number of queued writes before saves block.
+	 * @param batchSize the maximum number of writes taken from the queue at once.
+	 * @param lingerMillis how long to wait after a write is queued before
+	 * writing it, giving further saves of the same entity a chance to coalesce.
+	 */
+	public WriteBehind(int capacity, int batchSize, long lingerMillis) {
+		if (capacity < 1 || batchSize < 1 || lingerMillis < 0)
+			throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.lingerMillis = lingerMillis;
+		flusher = new Thread(this::run, "persistp-write-behind");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	private static final class Write {
+		final long seq;
+		final File file;
+		final byte[] data;
+		final FileStorage storage;
+		final String key;
+
+		Write(long seq, File file, byte[] data, FileStorage storage, String key) {
+			this.seq = seq;
+			this.file = file;
+			this.data = data;
+			this.storage = storage;
+			this.key = key;
+		}
+
+		void write() throws IOException {
+			storage.writeNow(key, file, data);
+		}
+	}
+
+	void enqueue(File file, byte[] data, FileStorage storage, String key) throws IOException {
+		lock.lock();
+		try {
+			while (!closed && !pending.containsKey(file) && pending.size() >= capacity)
+				notFull.awaitUninterruptibly();
+			if (closed)
+				throw new IllegalStateException("WriteBehind is closed");
+			// A coalesced write keeps the sequence number, and so the queue
+			// position, of the first save it replaces.
+			Write previous = pending.get(file);
+			pending.put(file, new Write(previous != null ? previous.seq : ++seq, file, data, storage, key));
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the data queued or being written for the file, or null if none. */
+	byte[] pending(File file) {
+		lock.lock();
+		try {
+			Write write = pending.get(file);
+			if (write == null)
+				write = inFlight.get(file);
+			return write != null ? write.data : null;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Discards any queued write of the file and waits for an in-progress write to finish. */
+	void cancel(File file) {
+		lock.lock();
+		try {
+			if (pending.remove(file) != null)
+				notFull.signalAll();
+			while (inFlight.containsKey(file))
+				written.awaitUninterruptibly();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until all saves queued before this call have been written.
+	 * Throws the first error encountered by a background write since the
+	 * last flush.
+	 */
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			long barrier = seq;
+			flushing++;
+			notEmpty.signalAll();
+			try {
+				while (queuedThrough(barrier))
+					written.awaitUninterruptibly();
+			}
+			finally {
+				flushing--;
+			}
+			IOException error = this.error;
+			this.error = null;
+			if (error != null)
+				throw error;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean queuedThrough(long barrier) {
+		for (Write write : pending.values()) {
+			if (write.seq <= barrier)
+				return true;
+		}
+		for (Write write : inFlight.values()) {
+			if (write.seq <= barrier)
+				return true;
+		}
+		return false;
+	}
+
+	/** Writes all queued saves and stops the background thread. */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	private void run() {
+		while (true) {
+			List<Write> batch = new ArrayList<Write>();
+			lock.lock();
+			try {
+				while (pending.isEmpty() && !closed)
+					notEmpty.awaitUninterruptibly();
+				if (pending.isEmpty())
+					return;
+				if (lingerMillis > 0) {
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+					long remaining;
+					while (!closed && flushing == 0 && pending.size() < batchSize && (remaining = deadline - System.nanoTime()) > 0)
+						notEmpty.awaitNanos(remaining);
+				}
+				for (Iterator<Write> i = pending.values().iterator(); i.hasNext() && batch.size() < batchSize;) {
+					Write write = i.next();
+					i.remove();
+					inFlight.put(write.file, write);
+					batch.add(write);
+				}
+				notFull.signalAll();
+			}
+			catch (InterruptedException e) {
+				// Keep running until closed
+			}
+			finally {
+				lock.unlock();
+			}
+			for (Write write : batch) {
+				IOException failure = null;
+				try {
+					write.write();
+				}
+				catch (IOException e) {
+					failure = e;
+				}
+				catch (RuntimeException e) {
+					// Reported to the next flush, and the flusher keeps running
+					failure = new IOException("Failed to write " + write.file, e);
+				}
+				lock.lock();
+				try {
+					if (failure != null && error == null)
+						error = failure;
+					inFlight.remove(write.file);
+					written.signalAll();
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+}
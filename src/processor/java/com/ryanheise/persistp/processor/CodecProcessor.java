@@ -0,0 +1,331 @@
+package com.ryanheise.persistp.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates an EntityCodec for each Entity subclass with @Prop fields so
+ * that loading and saving can assign fields directly instead of through
+ * reflection. A class is skipped (and falls back to reflection at runtime)
+ * when any of its persistent fields is private or of an unsupported type.
+ */
+@SupportedAnnotationTypes({
+	"com.ryanheise.persistp.Prop",
+	"com.ryanheise.persistp.Key",
+	"com.ryanheise.persistp.Temporal",
+	"com.ryanheise.persistp.FPattern",
+	"com.ryanheise.persistp.BackRef"
+})
+public class CodecProcessor extends AbstractProcessor {
+	private static final String PACKAGE = "com.ryanheise.persistp";
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement entityType = processingEnv.getElementUtils().getTypeElement(PACKAGE + ".Entity");
+		if (entityType == null)
+			return false;
+		Set<TypeElement> types = new LinkedHashSet<TypeElement>();
+		for (TypeElement annotation : annotations) {
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				if (element.getKind() == ElementKind.FIELD)
+					types.add((TypeElement)element.getEnclosingElement());
+			}
+		}
+		for (TypeElement type : types) {
+			if (processingEnv.getTypeUtils().isSubtype(processingEnv.getTypeUtils().erasure(type.asType()), entityType.asType()))
+				generate(type);
+		}
+		return false;
+	}
+
+	private void generate(TypeElement type) {
+		if (!isAccessible(type)) {
+			note(type, "not generating codec for inaccessible class " + type);
+			return;
+		}
+		List<Property> props = new ArrayList<Property>();
+		Property key = null;
+		for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			boolean isProp = annotation(field, "Prop") != null;
+			boolean isKey = annotation(field, "Key") != null;
+			// Static fields are not persistent, as at run time
+			if ((!isProp && !isKey) || field.getModifiers().contains(Modifier.STATIC))
+				continue;
+			if (field.getModifiers().contains(Modifier.PRIVATE) || field.getModifiers().contains(Modifier.FINAL)) {
+				note(field, "not generating codec for " + type + ": field " + field.getSimpleName() + " is private or final");
+				return;
+			}
+			Property prop = new Property(field);
+			if (prop.kind == null) {
+				note(field, "not generating codec for " + type + ": unsupported type " + field.asType());
+				return;
+			}
+			if (prop.kind.equals("Date") && prop.temporal == null) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Date field " + field.getSimpleName() + " requires @Temporal annotation", field);
+				return;
+			}
+			if (isProp)
+				props.add(prop);
+			if (isKey) {
+				if (key != null) {
+					processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot have more than 1 field with @Key annotation", field);
+					return;
+				}
+				if (prop.kind.startsWith("List") || prop.kind.endsWith("[]")) {
+					note(field, "not generating codec for " + type + ": unsupported key type " + field.asType());
+					return;
+				}
+				key = prop;
+			}
+		}
+		try {
+			write(type, props, key);
+		}
+		catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write codec: " + e, type);
+		}
+	}
+
+	private void write(TypeElement type, List<Property> props, Property key) throws IOException {
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String codecName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1).replace('$', '_') + "_Codec";
+		String entityName = type.getQualifiedName().toString();
+		String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+		try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedCodecName, type).openWriter())) {
+			if (!packageName.isEmpty()) {
+				out.println("package " + packageName + ";");
+				out.println();
+			}
+			out.println("import java.io.IOException;");
+			out.println();
+			out.println("// Generated by " + getClass().getName() + ". Do not edit.");
+			out.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+			out.println("public final class " + codecName + " extends " + PACKAGE + ".EntityCodec<" + entityName + "> {");
+			out.println("\t@Override");
+			out.println("\tprotected void load(" + entityName + " entity) throws IOException {");
+			for (Property prop : props)
+				out.println("\t\t" + prop.load("getProperty(entity, " + literal(prop.propName) + ", " + literal(prop.initial) + ")"));
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tprotected void save(" + entityName + " entity) throws IOException {");
+			for (Property prop : props)
+				out.println("\t\tsetProperty(entity, " + literal(prop.propName) + ", " + prop.save() + ");");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tprotected String getKey(" + entityName + " entity) {");
+			out.println("\t\treturn " + (key != null ? "String.valueOf(entity." + key.name + ")" : "null") + ";");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tprotected void setKey(" + entityName + " entity, String key) throws IOException {");
+			if (key != null)
+				out.println("\t\t" + key.load("key"));
+			else
+				out.println("\t\tthrow new IllegalStateException(\"" + entityName + " has no @Key field\");");
+			out.println("\t}");
+			out.println("}");
+		}
+	}
+
+	private boolean isAccessible(TypeElement type) {
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+			TypeElement t = (TypeElement)e;
+			if (t.getModifiers().contains(Modifier.PRIVATE))
+				return false;
+			if (t.getNestingKind() == NestingKind.MEMBER && !t.getModifiers().contains(Modifier.STATIC))
+				return false;
+			if (t.getNestingKind() == NestingKind.LOCAL || t.getNestingKind() == NestingKind.ANONYMOUS)
+				return false;
+		}
+		return true;
+	}
+
+	private void note(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, message, element);
+	}
+
+	private static AnnotationMirror annotation(Element element, String simpleName) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			TypeElement annotationType = (TypeElement)mirror.getAnnotationType().asElement();
+			if (annotationType.getQualifiedName().contentEquals(PACKAGE + "." + simpleName))
+				return mirror;
+		}
+		return null;
+	}
+
+	private static String annotationValue(Element element, String simpleName, String member) {
+		AnnotationMirror mirror = annotation(element, simpleName);
+		if (mirror == null)
+			return null;
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+			if (entry.getKey().getSimpleName().contentEquals(member))
+				return (String)entry.getValue().getValue();
+		}
+		return "";
+	}
+
+	private static String literal(String s) {
+		if (s == null)
+			return "null";
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20 || c > 0x7e)
+						sb.append(String.format("\\u%04x", (int)c));
+					else
+						sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private final class Property {
+		final String name;
+		final String propName;
+		final String initial;
+		final String temporal;
+		/** The supported field type, or null if unsupported. */
+		final String kind;
+
+		Property(VariableElement field) {
+			name = field.getSimpleName().toString();
+			String propName = annotationValue(field, "Prop", "name");
+			if (propName != null && propName.isEmpty())
+				propName = annotationValue(field, "Prop", "value");
+			if (propName != null && propName.isEmpty())
+				propName = name;
+			this.propName = propName;
+			String initial = annotationValue(field, "Prop", "initial");
+			this.initial = initial == null || initial.isEmpty() ? null : initial;
+			temporal = annotationValue(field, "Temporal", "value");
+			kind = kind(field.asType());
+		}
+
+		private String kind(TypeMirror type) {
+			switch (type.getKind()) {
+				case INT: return "int";
+				case LONG: return "long";
+				case DOUBLE: return "double";
+				case BOOLEAN: return "boolean";
+				case ARRAY: return arrayKind(((ArrayType)type).getComponentType());
+				case DECLARED: break;
+				default: return null;
+			}
+			DeclaredType declared = (DeclaredType)type;
+			String typeName = ((TypeElement)declared.asElement()).getQualifiedName().toString();
+			switch (typeName) {
+				case "java.lang.Integer": return "Integer";
+				case "java.lang.Long": return "Long";
+				case "java.lang.Double": return "Double";
+				case "java.lang.Boolean": return "Boolean";
+				case "java.lang.String": return "String";
+				case "java.util.Date": return "Date";
+				case "java.util.List": break;
+				default: return null;
+			}
+			if (declared.getTypeArguments().size() != 1)
+				return null;
+			TypeMirror elementType = declared.getTypeArguments().get(0);
+			if (elementType.getKind() != TypeKind.DECLARED)
+				return null;
+			String elementName = ((TypeElement)((DeclaredType)elementType).asElement()).getQualifiedName().toString();
+			if (elementName.equals("java.lang.String"))
+				return "List<String>";
+			if (elementName.equals("java.lang.Integer"))
+				return "List<Integer>";
+			TypeElement entityType = processingEnv.getElementUtils().getTypeElement(PACKAGE + ".Entity");
+			if (processingEnv.getTypeUtils().isSubtype(processingEnv.getTypeUtils().erasure(elementType), entityType.asType()))
+				return "List<Entity>";
+			return null;
+		}
+
+		private String arrayKind(TypeMirror componentType) {
+			switch (componentType.getKind()) {
+				case INT: return "int[]";
+				case LONG: return "long[]";
+				case DOUBLE: return "double[]";
+				default: return null;
+			}
+		}
+
+		String load(String s) {
+			String field = "entity." + name;
+			switch (kind) {
+				case "int": return field + " = parseInt(" + s + ", 0);";
+				case "long": return field + " = parseLong(" + s + ", 0L);";
+				case "double": return field + " = parseDouble(" + s + ", 0.0);";
+				case "boolean": return field + " = parseBoolean(" + s + ");";
+				case "Integer": return field + " = parseInteger(" + s + ");";
+				case "Long": return field + " = parseLongObject(" + s + ");";
+				case "Double": return field + " = parseDoubleObject(" + s + ");";
+				case "Boolean": return field + " = parseBooleanObject(" + s + ");";
+				case "String": return field + " = parseString(" + s + ");";
+				case "Date": return field + " = parseDate(" + s + ", " + literal(temporal) + ");";
+				case "List<String>": return "setStrings(" + field + ", " + s + ");";
+				case "List<Integer>": return "setIntegers(" + field + ", " + s + ");";
+				case "int[]": return field + " = parseInts(" + s + ");";
+				case "long[]": return field + " = parseLongs(" + s + ");";
+				case "double[]": return field + " = parseDoubles(" + s + ");";
+				default: return "setKeys(" + field + ", " + s + ");";
+			}
+		}
+
+		String save() {
+			String field = "entity." + name;
+			switch (kind) {
+				case "int":
+				case "long":
+				case "double":
+				case "boolean": return "String.valueOf(" + field + ")";
+				case "Integer":
+				case "Long":
+				case "Double":
+				case "Boolean": return "toStringOrNull(" + field + ")";
+				case "String": return field;
+				case "Date": return field + " != null ? formatDate(" + field + ", " + literal(temporal) + ") : null";
+				case "List<Entity>": return "joinKeys(" + field + ")";
+				default: return "join(" + field + ")";
+			}
+		}
+	}
+}